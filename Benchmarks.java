@@ -0,0 +1,674 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+//stand-alone benchmarks for the Terminal commands: the new implementations against the ones they replaced, on data
+//sizes too big for the JMH fixtures, a few runs each in a fresh JVM. Regressions between commits are measured by
+//the JMH module in benchmarks/, which runs every command
+//compile with: javac Main.java Benchmarks.java
+//the benchmarks use Terminal, WcCounts, TreeCopy... directly, which -Xlint:all reports as auxiliaryclass warnings
+//(they live in Main.java), so that lint is expected and turned off: javac -Xlint:all,-auxiliaryclass
+//run with:     java Benchmarks <name> [options]
+public class Benchmarks {
+
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length == 0) {
+            System.out.println("Usage: java Benchmarks <pipeline|wc-scaling|cpr|zip|ls|ls-tree|du|grep|rm|sum|tail|sort> [options]");
+            return;
+        }
+        String[] options = Arrays.copyOfRange(args, 1, args.length);
+        switch (args[0])
+        {
+            case "pipeline":
+                pipeline(options);
+                break;
+            case "pipeline-child": // one measured run in a fresh JVM, started by pipeline()
+                pipelineChild(options);
+                break;
+            case "wc-scaling":
+                wcScaling(options);
+                break;
+            case "cpr":
+                cpr(options);
+                break;
+            case "zip":
+                zip(options);
+                break;
+            case "ls":
+                ls(options);
+                break;
+            case "ls-tree":
+                lsTree(options);
+                break;
+            case "du":
+                du(options);
+                break;
+            case "grep":
+                grep(options);
+                break;
+            case "rm":
+                rm(options);
+                break;
+            case "sum":
+                sum(options);
+                break;
+            case "tail":
+                tail(options);
+                break;
+            case "sort":
+                sort(options);
+                break;
+            default:
+                System.out.println("Error: UNKNOWN BENCHMARK " + args[0]);
+        }
+    }
+
+    //cat file | wc with concurrent stages against cat into a String followed by wc over that String
+    //each mode runs in its own JVM so the peak RSS numbers don't mix
+    static void pipeline(String[] options) throws Exception
+    {
+        long megabytes = options.length > 0 ? Long.parseLong(options[0]) : 256;
+        Path dir = Files.createTempDirectory("bench-pipeline");
+        Path file = dir.resolve("input.log");
+        generateTextFile(file, megabytes * 1024 * 1024);
+
+        System.out.println("cat | wc over " + megabytes + " MB");
+        System.out.println("mode        wall(ms)   peakRSS(MB)");
+        for (String mode : new String[] {"concurrent", "buffered"})
+        {
+            String[] result = runChild("pipeline-child", mode, file.toString());
+            System.out.printf("%-10s %9s %12s%n", mode, result[0], result[1]);
+        }
+        deleteTree(dir);
+    }
+
+    static void pipelineChild(String[] options) throws Exception
+    {
+        String mode = options[0];
+        Path file = Paths.get(options[1]);
+        Path result = file.resolveSibling("result-" + mode + ".txt");
+        Terminal t = new Terminal();
+        t.currentPath = file.getParent().toString();
+
+        long start = System.nanoTime();
+        if (mode.equals("concurrent")) {
+            t.chooseCommandAction("cat " + file.getFileName() + " | wc > " + result.getFileName());
+        }
+        else {
+            //what running the stages one after another looks like: the whole output of cat held as a String
+            StringBuilder content = new StringBuilder();
+            try (Scanner reader = new Scanner(file.toFile()))
+            {
+                while (reader.hasNextLine()) content.append(reader.nextLine()).append("\n");
+            }
+            String catOutput = content.toString();
+            int lines = 0;
+            int words = 0;
+            for (String line : catOutput.split("\n"))
+            {
+                lines++;
+                String trimmed = line.trim();
+                if (!trimmed.isEmpty()) words += trimmed.split("\\s+").length;
+            }
+            Files.writeString(result, lines + " " + words + " " + catOutput.length() + "\n");
+        }
+        long wallMillis = (System.nanoTime() - start) / 1_000_000;
+        System.out.println(wallMillis + " " + peakRssMegabytes());
+    }
+
+    //parallel wc over 1/2/4/8 worker threads and WcCounts.WORKERS (the size of the pool wc -p makes), on one big file
+    //and on many smaller files; every run is checked against the serial counts
+    static void wcScaling(String[] options) throws Exception
+    {
+        long megabytes = options.length > 0 ? Long.parseLong(options[0]) : 1024;
+        int smallFiles = 64;
+        Path dir = Files.createTempDirectory("bench-wc");
+        Path big = dir.resolve("big.log");
+        generateTextFile(big, megabytes * 1024 * 1024);
+        List<Path> many = new ArrayList<>();
+        for (int i = 0; i < smallFiles; i++)
+        {
+            Path file = dir.resolve("part-" + i + ".log");
+            generateTextFile(file, megabytes * 1024 * 1024 / smallFiles);
+            many.add(file);
+        }
+
+        String expectedBig = WcCounts.ofFile(big, true, true).format(true, true, true);
+        List<String> expectedMany = new ArrayList<>();
+        for (Path file : many) expectedMany.add(WcCounts.ofFile(file, true, true).format(true, true, true));
+
+        System.out.println("wc -p over one " + megabytes + " MB file and " + smallFiles + " files of the same total size");
+        System.out.println("threads   one file(ms)   many files(ms)   MB/s(one)");
+        java.util.TreeSet<Integer> sizes = new java.util.TreeSet<>(List.of(1, 2, 4, 8, WcCounts.WORKERS));
+        for (int threads : sizes)
+        {
+            ForkJoinPool pool = new ForkJoinPool(threads); //the same kind of pool as wc -p, only the size changes
+            long start = System.nanoTime();
+            String bigResult = WcCounts.ofFileParallel(big, true, true, pool).format(true, true, true);
+            long bigMillis = (System.nanoTime() - start) / 1_000_000;
+
+            start = System.nanoTime();
+            List<ForkJoinTask<WcCounts>> tasks = new ArrayList<>();
+            for (Path file : many) tasks.add(WcCounts.submit(file, true, true, pool));
+            List<String> manyResult = new ArrayList<>();
+            for (ForkJoinTask<WcCounts> task : tasks) manyResult.add(WcCounts.join(task).format(true, true, true));
+            long manyMillis = (System.nanoTime() - start) / 1_000_000;
+            pool.shutdown();
+
+            if (!bigResult.equals(expectedBig) || !manyResult.equals(expectedMany)) {
+                System.out.println("Error: parallel counts differ from the serial counts with " + threads + " threads");
+                return;
+            }
+            System.out.printf("%7d %14d %16d %11d%n", threads, bigMillis, manyMillis, megabytes * 1000 / Math.max(1, bigMillis));
+        }
+        deleteTree(dir);
+    }
+
+    //cp -r of a synthetic tree of small files: the old serial Files.walk copy against TreeCopy
+    static void cpr(String[] options) throws Exception
+    {
+        int fileCount = options.length > 0 ? Integer.parseInt(options[0]) : 100_000;
+        Path dir = Files.createTempDirectory("bench-cpr");
+        Path source = dir.resolve("src");
+        generateTree(source, fileCount, 1024);
+
+        System.out.println("cp -r of " + fileCount + " files of 1 KB");
+        System.out.println("engine            wall(ms)   files/s");
+
+        Path serialTarget = dir.resolve("serial");
+        long start = System.nanoTime();
+        //the copy loop cp -r used before TreeCopy
+        try (var paths = Files.walk(source))
+        {
+            paths.forEach(sourcePath -> {
+                try {
+                    Path targetPath = serialTarget.resolve(source.relativize(sourcePath));
+                    if (Files.isDirectory(sourcePath)) {
+                        if (!Files.exists(targetPath)) Files.createDirectories(targetPath);
+                    }
+                    else Files.copy(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        }
+        printCopyRow("serial walk", fileCount, System.nanoTime() - start);
+
+        TreeCopy copy = new TreeCopy(source, dir.resolve("parallel"), TreeCopy.WORKERS);
+        start = System.nanoTime();
+        copy.run();
+        printCopyRow("TreeCopy x" + TreeCopy.WORKERS, fileCount, System.nanoTime() - start);
+        if (!copy.errors.isEmpty()) copy.printErrors(System.out);
+        deleteTree(dir);
+    }
+
+    static void printCopyRow(String name, long files, long nanos)
+    {
+        long millis = Math.max(1, nanos / 1_000_000);
+        System.out.printf("%-16s %9d %9d%n", name, millis, files * 1000 / millis);
+    }
+
+    //zip of a folder of text files: the old one-thread ZipOutputStream loop against ParallelZip
+    static void zip(String[] options) throws Exception
+    {
+        long megabytes = options.length > 0 ? Long.parseLong(options[0]) : 512;
+        int fileCount = 64;
+        Path dir = Files.createTempDirectory("bench-zip");
+        Path source = dir.resolve("logs");
+        Files.createDirectories(source);
+        List<ParallelZip.Source> sources = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++)
+        {
+            Path file = source.resolve("part-" + i + ".log");
+            generateTextFile(file, megabytes * 1024 * 1024 / fileCount);
+            sources.add(new ParallelZip.Source(file.toFile(), "logs/" + file.getFileName()));
+        }
+
+        System.out.println("zip of " + fileCount + " files, " + megabytes + " MB in total");
+        System.out.println("engine              wall(ms)   MB/s   archive(MB)");
+
+        Path serialArchive = dir.resolve("serial.zip");
+        long start = System.nanoTime();
+        //the loop zip used before ParallelZip: one thread, a 1 KB buffer
+        try (ZipOutputStream zipOutputStream = new ZipOutputStream(new FileOutputStream(serialArchive.toFile())))
+        {
+            for (ParallelZip.Source entry : sources)
+            {
+                zipOutputStream.putNextEntry(new ZipEntry(entry.entryName));
+                try (FileInputStream in = new FileInputStream(entry.file))
+                {
+                    byte[] bytes = new byte[1024];
+                    int length;
+                    while ((length = in.read(bytes)) >= 0) zipOutputStream.write(bytes, 0, length);
+                }
+            }
+        }
+        printZipRow("ZipOutputStream", megabytes, System.nanoTime() - start, serialArchive);
+
+        Path parallelArchive = dir.resolve("parallel.zip");
+        start = System.nanoTime();
+        new ParallelZip().write(parallelArchive, sources);
+        printZipRow("ParallelZip x" + ParallelZip.WORKERS, megabytes, System.nanoTime() - start, parallelArchive);
+        deleteTree(dir);
+    }
+
+    static void printZipRow(String name, long megabytes, long nanos, Path archive) throws IOException
+    {
+        long millis = Math.max(1, nanos / 1_000_000);
+        System.out.printf("%-18s %9d %6d %13d%n", name, millis, megabytes * 1000 / millis, Files.size(archive) / (1024 * 1024));
+    }
+
+    //ls of one big flat directory: the first (uncached) listing, repeats served by the listing cache,
+    //a repeat after a few files changed, and the unsorted -U stream for comparison
+    static void ls(String[] options) throws Exception
+    {
+        int fileCount = options.length > 0 ? Integer.parseInt(options[0]) : 500_000;
+        Path dir = Files.createTempDirectory("bench-ls");
+        for (int i = 0; i < fileCount; i++) Files.createFile(dir.resolve("f" + i + ".txt"));
+        Terminal t = new Terminal();
+        t.currentPath = dir.toString();
+        OutputSink out = OutputSink.toStream(OutputStream.nullOutputStream());
+
+        System.out.println("ls of a directory with " + fileCount + " entries");
+        System.out.println("run                 time(ms)");
+        printLsRow("first ls", t, new String[0], out);
+        for (int run = 1; run <= 3; run++) printLsRow("repeat " + run, t, new String[0], out);
+        for (int i = 0; i < 10; i++) Files.createFile(dir.resolve("new" + i + ".txt"));
+        Files.delete(dir.resolve("f0.txt"));
+        printLsRow("after 11 changes", t, new String[0], out);
+        printLsRow("ls -U", t, new String[] {"-U"}, out);
+        deleteTree(dir);
+    }
+
+    //ls -R and ls -lR over a generated tree (100 files per directory) with the output discarded
+    static void lsTree(String[] options) throws Exception
+    {
+        int fileCount = options.length > 0 ? Integer.parseInt(options[0]) : 1_000_000;
+        Path dir = Files.createTempDirectory("bench-ls-tree");
+        generateTree(dir, fileCount, 0);
+        Terminal t = new Terminal();
+        t.currentPath = dir.toString();
+        OutputSink out = OutputSink.toStream(OutputStream.nullOutputStream());
+
+        System.out.println("ls over a tree of " + fileCount + " files");
+        System.out.println("run                 time(ms)");
+        for (String[] args : new String[][] {{"-R"}, {"-lR"}, {"-lR"}, {"-lRU"}})
+            printLsRow("ls " + args[0], t, args, out);
+        System.out.println("peak RSS " + peakRssMegabytes() + " MB");
+        deleteTree(dir);
+    }
+
+    //du -s over a generated tree: a plain scan, then --cache cold, warm and after a few new files
+    //every run has to agree with the plain scan (plus the new files for the last one)
+    static void du(String[] options) throws Exception
+    {
+        int fileCount = options.length > 0 ? Integer.parseInt(options[0]) : 1_000_000;
+        Path dir = Files.createTempDirectory("bench-du");
+        generateTree(dir, fileCount, 100);
+        Path cacheFile = dir.resolveSibling(dir.getFileName() + ".du-cache");
+        System.setProperty("cli.duCache", cacheFile.toString());
+        Terminal t = new Terminal();
+        t.currentPath = dir.toString();
+
+        System.out.println("du -s over a tree of " + fileCount + " files");
+        System.out.println("run                 time(ms)   result");
+        String expected = printDuRow("plain", t, "du -s", dir, null);
+        printDuRow("cache, cold", t, "du -s --cache", dir, expected);
+        printDuRow("cache, warm", t, "du -s --cache", dir, expected);
+        for (int i = 0; i < 10; i++) Files.write(dir.resolve("d0").resolve("d" + i).resolve("new.txt"), new byte[1000]);
+        printDuRow("cache, 10 new", t, "du -s --cache", dir, (Long.parseLong(expected) + 10_000) + "");
+        Files.deleteIfExists(cacheFile);
+        deleteTree(dir);
+    }
+
+    //grep -rc over a tree of log files with a plain text pattern, a regex with a plain text part and a regex without one,
+    //against reading every line with a BufferedReader and running the regex on one thread
+    static void grep(String[] options) throws Exception
+    {
+        long megabytes = options.length > 0 ? Long.parseLong(options[0]) : 1024;
+        int fileCount = 256;
+        Path dir = Files.createTempDirectory("bench-grep");
+        for (int i = 0; i < fileCount; i++)
+        {
+            Path parent = dir.resolve("d" + i % 16);
+            Files.createDirectories(parent);
+            generateTextFile(parent.resolve("part-" + i + ".log"), megabytes * 1024 * 1024 / fileCount);
+        }
+        Terminal t = new Terminal();
+        t.currentPath = dir.toString();
+        Path result = dir.resolveSibling(dir.getFileName() + ".grep-result");
+
+        System.out.println("grep -rc over " + megabytes + " MB in " + fileCount + " files");
+        System.out.println("pattern                      grep(ms)   MB/s   reader(ms)   matches");
+        for (String pattern : new String[] {"request 4242 ", "request 1\\d{3} ", "served in 9[0-6] ms", "^\\d+-01-\\d+ 12"})
+        {
+            long start = System.nanoTime();
+            t.chooseCommandAction("grep -rc '" + pattern + "' . > " + result);
+            long grepMillis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            long matches = 0;
+            for (String line : Files.readAllLines(result)) matches += Long.parseLong(line.substring(line.lastIndexOf(':') + 1));
+
+            start = System.nanoTime();
+            long expected = 0;
+            java.util.regex.Pattern regex = java.util.regex.Pattern.compile(pattern);
+            try (var files = Files.walk(dir))
+            {
+                for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator)
+                {
+                    try (BufferedReader reader = Files.newBufferedReader(file))
+                    {
+                        String line;
+                        while ((line = reader.readLine()) != null) if (regex.matcher(line).find()) expected++;
+                    }
+                }
+            }
+            long readerMillis = (System.nanoTime() - start) / 1_000_000;
+            if (matches != expected) throw new IllegalStateException(pattern + ": " + matches + " matches, expected " + expected);
+            System.out.printf("%-26s %10d %6d %12d %9d%n", pattern, grepMillis, megabytes * 1000 / grepMillis, readerMillis, matches);
+        }
+        Files.delete(result);
+        deleteTree(dir);
+    }
+
+    //rm -r of a generated tree (100 files per directory) with 1..16 workers, against Files.walk deleting in reverse order
+    static void rm(String[] options) throws Exception
+    {
+        int fileCount = options.length > 0 ? Integer.parseInt(options[0]) : 200_000;
+        Path dir = Files.createTempDirectory("bench-rm");
+
+        System.out.println("rm -r of a tree of " + fileCount + " files");
+        System.out.println("workers   time(ms)   entries/s");
+        for (int workers : new int[] {0, 1, 2, 4, 8, 16})
+        {
+            Path tree = dir.resolve("tree");
+            generateTree(tree, fileCount, 0);
+            long start = System.nanoTime();
+            if (workers == 0) deleteTree(tree); //the walk and delete baseline
+            else {
+                TreeDelete delete = new TreeDelete(workers);
+                delete.delete(tree, "tree");
+                delete.shutdown();
+                if (!delete.errors.isEmpty()) throw new IllegalStateException(delete.errors.peek());
+            }
+            long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            if (Files.exists(tree)) throw new IllegalStateException("tree still there after " + workers + " workers");
+            System.out.printf("%7s %10d %11d%n", workers == 0 ? "walk" : Integer.toString(workers), millis, fileCount * 1000L / millis);
+        }
+        deleteTree(dir);
+    }
+
+    //sum -r over a tree of 1 MB files and a few 64 MB ones: one thread reading streams, sum --no-cache, and sum with a
+    //cold and a warm digest cache; then cp -r followed by sum -r on both trees against cp -r --verify (cp prints its summary)
+    static void sum(String[] options) throws Exception
+    {
+        long megabytes = options.length > 0 ? Long.parseLong(options[0]) : 1024;
+        Path dir = Files.createTempDirectory("bench-sum");
+        Path tree = dir.resolve("tree");
+        long large = megabytes / 2 / 64; //half of the data in 64 MB files, the rest in 1 MB files
+        Files.createDirectories(tree.resolve("large"));
+        for (int i = 0; i < large; i++) generateTextFile(tree.resolve("large").resolve("part-" + i + ".log"), 64L * 1024 * 1024);
+        Files.createDirectories(tree.resolve("small"));
+        for (int i = 0; i < megabytes - large * 64; i++) generateTextFile(tree.resolve("small").resolve("part-" + i + ".log"), 1024 * 1024);
+        Path cacheFile = dir.resolve("sum-cache");
+        System.setProperty("cli.sumCache", cacheFile.toString());
+        Terminal t = new Terminal();
+        t.currentPath = dir.toString();
+
+        System.out.println("sum -r over " + megabytes + " MB (" + large + " files of 64 MB, the rest 1 MB each)");
+        System.out.println("run                  time(ms)     MB/s");
+        long start = System.nanoTime();
+        StringBuilder expected = new StringBuilder();
+        try (var files = Files.walk(tree))
+        {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile).sorted()::iterator)
+            {
+                java.security.MessageDigest digest = java.security.MessageDigest.getInstance("SHA-256");
+                try (var in = Files.newInputStream(file))
+                {
+                    byte[] buffer = new byte[64 * 1024];
+                    int length;
+                    while ((length = in.read(buffer)) >= 0) digest.update(buffer, 0, length);
+                }
+                expected.append(Checksums.hex(digest.digest())).append("  ").append(dir.relativize(file)).append(System.lineSeparator());
+            }
+        }
+        printSumRow("one thread", megabytes, start);
+        Path result = dir.resolve("sum-result");
+        for (String run : new String[] {"--no-cache", "cache, cold", "cache, warm"})
+        {
+            start = System.nanoTime();
+            t.chooseCommandAction("sum -r " + (run.equals("--no-cache") ? "--no-cache " : "") + "tree > " + result);
+            printSumRow("sum " + run, megabytes, start);
+            if (!Files.readString(result).equals(expected.toString())) throw new IllegalStateException(run + ": digests differ");
+        }
+
+        Files.delete(cacheFile);
+        start = System.nanoTime();
+        t.chooseCommandAction("cp -r tree copy");
+        t.chooseCommandAction("sum -r --no-cache tree copy > " + result);
+        printSumRow("cp -r, sum -r both", megabytes, start);
+        deleteTree(dir.resolve("copy"));
+        start = System.nanoTime();
+        t.chooseCommandAction("cp -r --verify tree copy");
+        printSumRow("cp -r --verify", megabytes, start);
+        start = System.nanoTime();
+        t.chooseCommandAction("sum -r copy > " + result); //the digests --verify took are in the cache
+        printSumRow("sum -r of the copy", megabytes, start);
+        if (!Files.readString(result).equals(expected.toString().replace("tree" + File.separator, "copy" + File.separator))) throw new IllegalStateException("copy: digests differ");
+        deleteTree(dir);
+    }
+
+    //tail -n 100 / head -n 100 of a big log against reading it line by line and keeping the last 100 lines
+    static void tail(String[] options) throws Exception
+    {
+        long megabytes = options.length > 0 ? Long.parseLong(options[0]) : 1024;
+        Path dir = Files.createTempDirectory("bench-tail");
+        Path log = dir.resolve("app.log");
+        generateTextFile(log, megabytes * 1024 * 1024);
+        Terminal t = new Terminal();
+        t.currentPath = dir.toString();
+        Path result = dir.resolve("tail-result");
+
+        System.out.println("last / first 100 lines of a " + megabytes + " MB log");
+        System.out.println("run                time(ms)");
+        long start = System.nanoTime();
+        java.util.ArrayDeque<String> last = new java.util.ArrayDeque<>();
+        try (BufferedReader reader = Files.newBufferedReader(log))
+        {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                last.addLast(line);
+                if (last.size() > 100) last.removeFirst();
+            }
+        }
+        System.out.printf("%-18s %9.1f%n", "reader", (System.nanoTime() - start) / 1e6);
+        for (String command : new String[] {"tail -n 100", "head -n 100"})
+        {
+            start = System.nanoTime();
+            t.chooseCommandAction(command + " app.log > " + result);
+            System.out.printf("%-18s %9.1f%n", command, (System.nanoTime() - start) / 1e6);
+        }
+        t.chooseCommandAction("tail -n 100 app.log > " + result);
+        if (!Files.readAllLines(result).equals(new ArrayList<>(last))) throw new IllegalStateException("tail: lines differ");
+        deleteTree(dir);
+    }
+
+    //sort of a generated log with memory budgets small enough to spill runs to disk and one that fits in memory,
+    //against reading all the lines into a list and sorting it; every result has to match that list
+    //run it with a small heap (java -Xmx256m Benchmarks sort 1024) to see the external sort work past the heap
+    static void sort(String[] options) throws Exception
+    {
+        long megabytes = options.length > 0 ? Long.parseLong(options[0]) : 256;
+        Path dir = Files.createTempDirectory("bench-sort");
+        Path log = dir.resolve("app.log");
+        generateTextFile(log, megabytes * 1024 * 1024);
+        Terminal t = new Terminal();
+        t.currentPath = dir.toString();
+        Path result = dir.resolve("sort-result");
+
+        System.out.println("sort of a " + megabytes + " MB log on " + ExternalSort.WORKERS + " workers, heap " + Runtime.getRuntime().maxMemory() / 1048576 + " MB");
+        System.out.println("run                 time(ms)     MB/s");
+        long[] checksum = null;
+        try {
+            long start = System.nanoTime();
+            List<String> lines = Files.readAllLines(log);
+            lines.sort(null); //String order is the byte order for this ASCII log
+            printSumRow("readAllLines, sort", megabytes, start);
+            checksum = linesChecksum(lines.iterator());
+        }
+        catch (OutOfMemoryError e) {
+            System.out.println("readAllLines, sort      out of memory");
+        }
+        for (String budget : new String[] {"16M", "64M", "256M", ""})
+        {
+            long start = System.nanoTime();
+            t.chooseCommandAction("sort " + (budget.isEmpty() ? "" : "-S " + budget + " ") + "app.log > " + result);
+            printSumRow(budget.isEmpty() ? "sort" : "sort -S " + budget, megabytes, start);
+            try (BufferedReader reader = Files.newBufferedReader(result))
+            {
+                long[] sorted = linesChecksum(reader.lines().iterator());
+                if (sorted[2] != 1) throw new IllegalStateException(budget + ": output is not sorted");
+                if (checksum != null && (sorted[0] != checksum[0] || sorted[1] != checksum[1])) throw new IllegalStateException(budget + ": lines differ");
+            }
+        }
+        deleteTree(dir);
+    }
+
+    //line count, a hash of the lines that doesn't depend on their order, and 1 when they are in order
+    static long[] linesChecksum(java.util.Iterator<String> lines)
+    {
+        long count = 0, hash = 0, ordered = 1;
+        String previous = null;
+        while (lines.hasNext())
+        {
+            String line = lines.next();
+            count++;
+            hash += line.hashCode() * 0x9E3779B97F4A7C15L;
+            if (previous != null && previous.compareTo(line) > 0) ordered = 0;
+            previous = line;
+        }
+        return new long[] {count, hash, ordered};
+    }
+
+    //----- helpers shared by the benchmarks -----
+
+    static void printSumRow(String run, long megabytes, long start)
+    {
+        long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+        System.out.printf("%-18s %10d %8d%n", run, millis, megabytes * 1000 / millis);
+    }
+
+    static String printDuRow(String run, Terminal t, String command, Path dir, String expected) throws IOException
+    {
+        Path result = dir.resolveSibling(dir.getFileName() + ".du-result");
+        long start = System.nanoTime();
+        t.chooseCommandAction(command + " > " + result);
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        String bytes = Files.readString(result).split("\t")[0];
+        Files.delete(result);
+        if (expected != null && !expected.equals(bytes)) throw new IllegalStateException(run + ": " + bytes + " bytes, expected " + expected);
+        System.out.printf("%-18s %9d   %s bytes%n", run, millis, bytes);
+        return bytes;
+    }
+
+    static void printLsRow(String run, Terminal t, String[] args, OutputSink out) throws IOException
+    {
+        long start = System.nanoTime();
+        t.ls(args, out);
+        System.out.printf("%-18s %9d%n", run, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    //a tree of fileCount files of the given size, 100 per directory, directories two levels deep
+    static void generateTree(Path root, int fileCount, int fileSize) throws IOException
+    {
+        byte[] content = new byte[fileSize];
+        Arrays.fill(content, (byte) 'x');
+        for (int i = 0; i < fileCount; i++)
+        {
+            Path parent = root.resolve("d" + (i / 10_000)).resolve("d" + (i / 100 % 100));
+            if (i % 100 == 0) Files.createDirectories(parent);
+            Files.write(parent.resolve("f" + i + ".txt"), content);
+        }
+    }
+
+    //fills the file with log-like lines until it reaches the wanted size
+    static void generateTextFile(Path file, long bytes) throws IOException
+    {
+        if (Files.exists(file) && Files.size(file) >= bytes) return;
+        long written = 0;
+        long lineNumber = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(file))
+        {
+            while (written < bytes)
+            {
+                String line = "2026-01-01 12:00:00 INFO  request " + lineNumber++ + " served in " + (lineNumber % 97) + " ms\n";
+                writer.write(line);
+                written += line.length();
+            }
+        }
+    }
+
+    //peak resident set size of this JVM, read from /proc (Linux only, -1 elsewhere)
+    static long peakRssMegabytes()
+    {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status")))
+            {
+                if (line.startsWith("VmHWM:")) return Long.parseLong(line.replaceAll("\\D", "")) / 1024;
+            }
+        }
+        catch (IOException ignored) {
+        }
+        return -1;
+    }
+
+    //runs "java Benchmarks <args>" in a fresh JVM and returns the words of its last output line
+    static String[] runChild(String... args) throws IOException, InterruptedException
+    {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add("Benchmarks");
+        command.addAll(List.of(args));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String last = "";
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream())))
+        {
+            String line;
+            while ((line = reader.readLine()) != null) last = line;
+        }
+        process.waitFor();
+        return last.trim().split("\\s+");
+    }
+
+    static void deleteTree(Path root) throws IOException
+    {
+        if (!Files.exists(root)) return;
+        try (var paths = Files.walk(root))
+        {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
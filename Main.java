@@ -1,20 +1,100 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Scanner;
+import java.util.TreeSet;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
-
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import java.util.zip.ZipFile;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 class Parser {
     enum WriteType
@@ -23,99 +103,4583 @@ class Parser {
         Overwrite,
         Append
     };
-    String commandName;
+    //how a command of a ; / && list is joined to the one before it
+    enum Connector
+    {
+        Always,     //first command or after ;
+        IfSucceeded //after &&, skipped when the previous command failed
+    };
+    //one command of a | pipeline
+    static class Stage
+    {
+        final String commandName;
+        final String[] args;
+
+        Stage(String commandName, String[] args)
+        {
+            this.commandName = commandName;
+            this.args = args;
+        }
+    }
+    //one pipeline of the command list together with its redirection (it catches the output of the last stage)
+    static class Command
+    {
+        final Connector connector;
+        final ArrayList<Stage> stages = new ArrayList<>(2); //more than one stage means the commands are joined with |
+        WriteType writeType = WriteType.NoWrite;
+        String filePath;
+        boolean background; //the && chain it belongs to ends with &, it runs as a job
+
+        Command(Connector connector)
+        {
+            this.connector = connector;
+        }
+    }
+
+    //token kinds, quoted operators like ">" or '|' are plain words
+    private static final int WORD = 0, OVERWRITE = 1, APPEND = 2, PIPE = 3, AND = 4, SEMICOLON = 5, BACKGROUND = 6, END = 7, ERROR = 8;
+
+    String commandName; //first stage of the first command, kept for the single command callers
     String[] args;
+    ArrayList<Command> commands = new ArrayList<>();
+    String error; //why the last parse returned false
 
-    WriteType writeType;
-    String filePath;
+    //reused by every parse so a command line only allocates its words and the tree
+    private char[] token = new char[64];
+    private String[] words = new String[16];
+    private String input;
+    private int position;
+    private String word;
 
+    //single pass over the characters, builds the ; / && / & list of pipelines
+    //a & marks the commands since the last ; or & as background, "a && b & c" runs a && b as one job and c in front
+    //an empty line parses to an empty list
     public boolean parse(String input)
     {
-        //splits the command line to command and arguments
-        ArrayList<String> splits = new ArrayList<>(Arrays.asList(input.split("\\s+"))); //(using \s+ instead of \s to tolerate multiple consecutive spaces)
-        writeType = WriteType.NoWrite;
-        filePath = null;
-        if (splits.contains(">")) {
-            writeType = WriteType.Overwrite;
-            int idx = splits.indexOf(">");
-            if (idx + 1 <splits.size()) { // in case of there's a file name
-                filePath = splits.get(idx+1);
-                splits = new ArrayList<>(splits.subList(0,idx)); //removing the > operator and the file name from the list
+        this.input = input;
+        position = 0;
+        commandName = null;
+        args = null;
+        error = null;
+        commands = new ArrayList<>(); //a new list, the previous tree may still be running in a pipeline
+
+        Command command = null;
+        Connector connector = Connector.Always;
+        int chain = 0; //first command after the last ; or &
+        int wordCount = 0;
+        int kind;
+        do {
+            kind = next();
+            if (kind == WORD) {
+                if (command == null) command = new Command(connector);
+                if (wordCount == words.length) words = Arrays.copyOf(words, wordCount * 2);
+                words[wordCount++] = word;
+                continue;
+            }
+            if (kind == OVERWRITE || kind == APPEND) {
+                int target = next();
+                if (target == ERROR) return fail(error);
+                if (target != WORD) return fail("Error: MISSING FILE NAME AFTER " + (kind == OVERWRITE ? ">" : ">>"));
+                if (command == null) command = new Command(connector);
+                command.writeType = kind == OVERWRITE ? WriteType.Overwrite : WriteType.Append;
+                command.filePath = word;
+                continue;
+            }
+
+            if (kind == ERROR) return fail(error);
+
+            //an operator or the end of the line closes the current stage
+            if (wordCount == 0) {
+                if (command == null && connector == Connector.Always && kind == END) break; //blank line or a trailing ; / &
+                if (kind == PIPE || command != null && !command.stages.isEmpty()) return fail("Error: EMPTY COMMAND IN PIPELINE");
+                if (command == null && connector == Connector.IfSucceeded) return fail("Error: MISSING COMMAND AFTER &&");
+                return fail("Error: MISSING COMMAND");
+            }
+            command.stages.add(new Stage(words[0].toLowerCase(), Arrays.copyOfRange(words, 1, wordCount)));
+            Arrays.fill(words, 0, wordCount, null);
+            wordCount = 0;
+            if (kind == PIPE) continue;
+
+            commands.add(command);
+            command = null;
+            connector = kind == AND ? Connector.IfSucceeded : Connector.Always;
+            if (kind == BACKGROUND) for (int i = chain; i < commands.size(); i++) commands.get(i).background = true;
+            if (kind != AND) chain = commands.size();
+        } while (kind != END);
+
+        this.input = null;
+        if (!commands.isEmpty()) {
+            Stage first = commands.get(0).stages.get(0);
+            commandName = first.commandName;
+            args = first.args;
+        }
+        return true;
+    }
+
+    private boolean fail(String message)
+    {
+        error = message;
+        input = null;
+        commands.clear();
+        return false;
+    }
+
+    //reads the next token, a WORD leaves its text in word
+    private int next()
+    {
+        String line = input;
+        int length = line.length();
+        int i = position;
+        while (i < length && Character.isWhitespace(line.charAt(i))) i++;
+        if (i == length) {
+            position = i;
+            return END;
+        }
+
+        char c = line.charAt(i);
+        switch (c) {
+            case '>':
+                if (i + 1 < length && line.charAt(i + 1) == '>') {
+                    position = i + 2;
+                    return APPEND;
+                }
+                position = i + 1;
+                return OVERWRITE;
+            case '|':
+                position = i + 1;
+                return PIPE;
+            case ';':
+                position = i + 1;
+                return SEMICOLON;
+            case '&':
+                if (i + 1 < length && line.charAt(i + 1) == '&') {
+                    position = i + 2;
+                    return AND;
+                }
+                position = i + 1;
+                return BACKGROUND;
+        }
+
+        //plain words are cut straight out of the line, the token buffer is only used once a quote or escape shows up
+        int start = i;
+        while (i < length && !endsWord(line, i)) {
+            c = line.charAt(i);
+            if (c == '\'' || c == '"' || c == '\\') return quotedWord(start, i);
+            i++;
+        }
+        position = i;
+        word = line.substring(start, i);
+        return WORD;
+    }
+
+    private static boolean endsWord(String line, int i)
+    {
+        char c = line.charAt(i);
+        return Character.isWhitespace(c) || c == '>' || c == '|' || c == ';' || c == '&';
+    }
+
+    //'single quotes' keep everything as is, "double quotes" understand \" and \\, a \ outside quotes escapes the next character
+    private int quotedWord(int start, int i)
+    {
+        String line = input;
+        int length = line.length();
+        int size = 0;
+        for (int j = start; j < i; j++) size = append(size, line.charAt(j));
+
+        while (i < length && !endsWord(line, i))
+        {
+            char c = line.charAt(i++);
+            if (c == '\\') {
+                if (i < length) size = append(size, line.charAt(i++)); //a trailing \ is dropped
+            }
+            else if (c == '\'') {
+                int close = line.indexOf('\'', i);
+                if (close < 0) return unterminated('\'');
+                for (; i < close; i++) size = append(size, line.charAt(i));
+                i++;
+            }
+            else if (c == '"') {
+                while (i < length && line.charAt(i) != '"')
+                {
+                    c = line.charAt(i++);
+                    if (c == '\\' && i < length && (line.charAt(i) == '"' || line.charAt(i) == '\\')) c = line.charAt(i++);
+                    size = append(size, c);
+                }
+                if (i == length) return unterminated('"');
+                i++;
+            }
+            else size = append(size, c);
+        }
+        position = i;
+        word = new String(token, 0, size);
+        return WORD;
+    }
+
+    private int append(int size, char c)
+    {
+        if (size == token.length) token = Arrays.copyOf(token, size * 2);
+        token[size] = c;
+        return size + 1;
+    }
+
+    private int unterminated(char quote)
+    {
+        error = "Error: UNTERMINATED " + quote;
+        return ERROR;
+    }
+
+    public String getCommandName() {
+        return commandName;
+    }
+
+    public String[] getArgs() {
+        return args;
+    }
+}
+
+//bounded LRU of parsed command lines keyed by (line, current directory), so a repeated line skips the tokenizer
+//and the paths it resolved last time (normalizePath is a pure function of the two) are looked up instead of rebuilt
+//the size can be set with -Dcli.commandCache=<entries>, 0 turns it off
+class CommandCache
+{
+    static final int DEFAULT_CAPACITY = Integer.getInteger("cli.commandCache", 256);
+
+    static class Key
+    {
+        final String line;
+        final String currentPath;
+
+        Key(String line, String currentPath)
+        {
+            this.line = line;
+            this.currentPath = currentPath;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Key)) return false;
+            Key key = (Key) other;
+            return line.equals(key.line) && currentPath.equals(key.currentPath);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return line.hashCode() * 31 + currentPath.hashCode();
+        }
+    }
+
+    static class Entry
+    {
+        final ArrayList<Parser.Command> commands; //null when the line doesn't parse
+        final String error;
+        final String currentPath;
+        final ConcurrentHashMap<String, String> paths = new ConcurrentHashMap<>(); //argument -> resolved against currentPath
+
+        Entry(ArrayList<Parser.Command> commands, String error, String currentPath)
+        {
+            this.commands = commands;
+            this.error = error;
+            this.currentPath = currentPath;
+        }
+    }
+
+    private final int capacity;
+    private final LinkedHashMap<Key, Entry> entries;
+    private long hits;
+    private long misses;
+
+    CommandCache(int capacity)
+    {
+        this.capacity = capacity;
+        entries = new LinkedHashMap<>(16, 0.75f, true) { //access order, the eldest entry is the least recently used
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest)
+            {
+                return size() > CommandCache.this.capacity;
+            }
+        };
+    }
+
+    //the cached tree of the line, or a freshly parsed one (parse errors are cached too)
+    Entry get(String line, String currentPath, Parser parser)
+    {
+        Key key = new Key(line, currentPath);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                return entry;
+            }
+            misses++;
+        }
+
+        Entry entry = parser.parse(line) ? new Entry(parser.commands, null, currentPath) : new Entry(null, parser.error, currentPath);
+        if (capacity > 0) {
+            synchronized (this) {
+                entries.put(key, entry);
+            }
+        }
+        return entry;
+    }
+
+    synchronized long hits()
+    {
+        return hits;
+    }
+
+    synchronized long misses()
+    {
+        return misses;
+    }
+
+    synchronized void clear()
+    {
+        entries.clear();
+        hits = 0;
+        misses = 0;
+    }
+
+    synchronized String stats()
+    {
+        long lookups = hits + misses;
+        return String.format("command cache: %d/%d entries, %d hits, %d misses (%.1f%% hit rate)",
+                entries.size(), capacity, hits, misses, lookups == 0 ? 0.0 : hits * 100.0 / lookups);
+    }
+}
+
+//reusable direct buffers for the commands that move file data, so a copy or an archive entry doesn't allocate
+//its own buffer and FileChannel reads/writes skip the extra copy through a heap array
+//the size can be set with -Dcli.bufferSize=<bytes>
+class BufferPool
+{
+    static final int DEFAULT_SIZE = Integer.getInteger("cli.bufferSize", 256 * 1024);
+    static final BufferPool DEFAULT = new BufferPool(DEFAULT_SIZE, Math.max(8, Runtime.getRuntime().availableProcessors() * 4));
+
+    final int bufferSize;
+    private final int maxPooled; //buffers beyond this are left to the GC when they are given back
+    private final ConcurrentLinkedQueue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    BufferPool(int bufferSize, int maxPooled)
+    {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    //use with try-with-resources, closing the lease gives the buffer back
+    Lease acquire()
+    {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) buffer = ByteBuffer.allocateDirect(bufferSize);
+        else pooled.decrementAndGet();
+        buffer.clear();
+        return new Lease(buffer);
+    }
+
+    class Lease implements AutoCloseable
+    {
+        final ByteBuffer buffer;
+
+        private Lease(ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public void close()
+        {
+            if (pooled.incrementAndGet() <= maxPooled) free.offer(buffer);
+            else pooled.decrementAndGet();
+        }
+    }
+}
+
+//file copies shared by cp, cp -r, zip, unzip and cat: channel transfers where the OS can do the copy,
+//pooled buffers everywhere else, and every stream and channel closed by try-with-resources
+class FileIO
+{
+    //replaces the target, the data goes file to file in the kernel
+    static long copyFile(Path source, Path target) throws IOException
+    {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            return transfer(in, 0, in.size(), out);
+        }
+    }
+
+    //same as copyFile, and the target gets the modification time of the source
+    static long copyFileKeepTime(Path source, Path target, FileTime modified) throws IOException
+    {
+        long copied = copyFile(source, target);
+        Files.setLastModifiedTime(target, modified);
+        return copied;
+    }
+
+    //sends count bytes of the channel from position, returns how many were sent (less if the file got shorter)
+    static long transfer(FileChannel in, long position, long count, WritableByteChannel out) throws IOException
+    {
+        long sent = 0;
+        while (sent < count)
+        {
+            long transferred = in.transferTo(position + sent, count - sent, out);
+            if (transferred <= 0) break;
+            sent += transferred;
+        }
+        return sent;
+    }
+
+    static long copy(InputStream in, Path target) throws IOException
+    {
+        return copy(in, target, BufferPool.DEFAULT);
+    }
+
+    //drains the stream into the target through one pooled buffer, writing a full buffer per call
+    static long copy(InputStream in, Path target, BufferPool pool) throws IOException
+    {
+        try (BufferPool.Lease lease = pool.acquire();
+             ReadableByteChannel source = Channels.newChannel(in);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            ByteBuffer buffer = lease.buffer;
+            long copied = 0;
+            while (true)
+            {
+                int read = source.read(buffer);
+                if (read < 0 || !buffer.hasRemaining()) {
+                    buffer.flip();
+                    copied += buffer.remaining();
+                    while (buffer.hasRemaining()) out.write(buffer);
+                    buffer.clear();
+                }
+                if (read < 0) return copied;
+            }
+        }
+    }
+
+    //fills the buffer from the position (less at the end of the file) and flips it for reading
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        buffer.clear();
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+        }
+        buffer.flip();
+    }
+}
+
+//where a command writes its output: the terminal or the > / >> target file, filled in bounded chunks
+class OutputSink implements Closeable
+{
+    static final int CHUNK_SIZE = 64 * 1024;
+    private static final FileOutputStream STDOUT = new FileOutputStream(FileDescriptor.out); //shared, never closed
+
+    private static volatile boolean batched; //System.out is one big buffer flushed at the end (batch mode)
+
+    private final OutputStream out;
+    private final FileChannel channel; //channel behind the sink (file or stdout), null for other streams
+    private final boolean closeUnderlying;
+    private final boolean flushOnClose;
+    private boolean feedsStage; //write end of a pipe, what is written here is the next stage's input
+
+    private OutputSink(OutputStream raw, FileChannel channel, boolean closeUnderlying)
+    {
+        this.out = new BufferedOutputStream(raw, CHUNK_SIZE); //only CHUNK_SIZE bytes are held before they reach the target
+        this.channel = channel;
+        this.closeUnderlying = closeUnderlying;
+        this.flushOnClose = true;
+    }
+
+    //writes straight into System.out, which is already buffered in batch mode
+    private OutputSink(PrintStream shared)
+    {
+        this.out = shared;
+        this.channel = STDOUT.getChannel();
+        this.closeUnderlying = false;
+        this.flushOnClose = false;
+    }
+
+    //makes System.out a large buffer that is only written when full or flushed, instead of once per line
+    static void batchStdout()
+    {
+        System.setOut(new PrintStream(new BufferedOutputStream(STDOUT, 1024 * 1024), false));
+        batched = true;
+    }
+
+    static OutputSink stdout()
+    {
+        if (batched) return new OutputSink(System.out); //same stream as the messages, so the order is kept without flushing
+        System.out.flush(); //keep ordering with messages already printed through System.out
+        return new OutputSink(STDOUT, STDOUT.getChannel(), false);
+    }
+
+    static OutputSink toFile(Path path, boolean append) throws IOException
+    {
+        FileOutputStream fileOutputStream = new FileOutputStream(path.toFile(), append); //creates the file if it doesn't exist
+        return new OutputSink(fileOutputStream, fileOutputStream.getChannel(), true);
+    }
+
+    //a stream that outlives the sink (the output file of a background job), closing the sink only flushes it
+    static OutputSink toShared(OutputStream stream)
+    {
+        return new OutputSink(stream, null, false);
+    }
+
+    //closing the sink closes the stream
+    static OutputSink toStream(OutputStream stream)
+    {
+        return new OutputSink(stream, null, true);
+    }
+
+    //the write end of a pipe between two stages, error messages must not go in there
+    static OutputSink toPipe(OutputStream stream)
+    {
+        OutputSink sink = toStream(stream);
+        sink.feedsStage = true;
+        return sink;
+    }
+
+    public boolean feedsStage()
+    {
+        return feedsStage;
+    }
+
+    public void print(String text) throws IOException
+    {
+        out.write(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void println(String text) throws IOException
+    {
+        print(text);
+        print(System.lineSeparator());
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException
+    {
+        out.write(bytes, offset, length);
+    }
+
+    //copies the whole stream through a single CHUNK_SIZE buffer
+    public void writeAll(InputStream in) throws IOException
+    {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        int length;
+        while ((length = in.read(buffer)) >= 0) {
+            out.write(buffer, 0, length);
+        }
+    }
+
+    //copies a whole file into the sink, kernel side (sendfile / copy_file_range) when the sink has a channel
+    public void transferFrom(FileChannel source) throws IOException
+    {
+        if (channel == null) {
+            writeAll(Channels.newInputStream(source));
+            return;
+        }
+        out.flush(); //bytes written before go first
+        FileIO.transfer(source, 0, source.size(), channel);
+    }
+
+    //count bytes of the file from position, for the parts of a file tail prints
+    public void transferFrom(FileChannel source, long position, long count) throws IOException
+    {
+        if (channel == null) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            long end = position + count;
+            while (position < end)
+            {
+                wrapped.clear().limit((int) Math.min(CHUNK_SIZE, end - position));
+                int read = source.read(wrapped, position);
+                if (read <= 0) break;
+                out.write(buffer, 0, read);
+                position += read;
+            }
+            return;
+        }
+        out.flush();
+        FileIO.transfer(source, position, count, channel);
+    }
+
+    //the sink as an OutputStream for code that writes to one, closing it leaves the sink open
+    public OutputStream stream()
+    {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException
+            {
+                out.write(bytes, offset, length);
+            }
+
+            @Override
+            public void close()
+            {
+            }
+        };
+    }
+
+    public FileChannel channel()
+    {
+        return channel;
+    }
+
+    public void flush() throws IOException
+    {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (flushOnClose) out.flush();
+        if (closeUnderlying) out.close();
+    }
+}
+
+//runs the stages of a | pipeline at the same time, each stage reading the previous one through a bounded Pipe
+class Pipeline
+{
+    static final int PIPE_CAPACITY = 4; //chunks in flight between two stages, a full pipe blocks the producer
+    static final ExecutorService STAGE_EXECUTOR = newStageExecutor();
+
+    //virtual threads when the runtime has them (JDK 21+), daemon platform threads otherwise
+    static ExecutorService newStageExecutor()
+    {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "pipeline-stage");
+                thread.setDaemon(true); //so a stuck stage never keeps the JVM alive after exit
+                return thread;
+            });
+        }
+    }
+
+    //one submitted stage, what is needed to stop it and to wait until it really ended
+    private static class Running
+    {
+        final AtomicBoolean started = new AtomicBoolean(); //taken by the stage, or by the interrupt if it never ran
+        final CompletableFuture<Void> finished = new CompletableFuture<>();
+        Future<?> future;
+        InputStream in;
+    }
+
+    public static void run(Terminal terminal, List<Parser.Stage> stages, OutputSink out) throws IOException
+    {
+        ArrayList<Running> running = new ArrayList<>();
+        InputStream previous = null;
+        for (int i = 0; i < stages.size(); i++)
+        {
+            Parser.Stage stage = stages.get(i);
+            Running run = new Running();
+            InputStream in = previous;
+            run.in = in;
+            boolean last = i == stages.size() - 1;
+            Pipe pipe = last ? null : new Pipe(PIPE_CAPACITY);
+            OutputSink stageOut = last ? out : OutputSink.toPipe(pipe.writeEnd());
+            run.future = STAGE_EXECUTOR.submit(() -> {
+                if (!run.started.compareAndSet(false, true)) return null; //the pipeline was interrupted before this stage ran
+                try {
+                    terminal.execute(stage.commandName, stage.args, in, stageOut);
+                    return null;
+                }
+                finally {
+                    try {
+                        if (!last) stageOut.close(); //tells the next stage there is no more data
+                    }
+                    finally {
+                        if (in != null) in.close(); //unblocks the previous stage if this one stopped reading early
+                        run.finished.complete(null);
+                    }
+                }
+            });
+            running.add(run);
+            previous = last ? null : pipe.readEnd();
+        }
+
+        IOException failure = null;
+        for (Running stage : running)
+        {
+            try {
+                stage.future.get();
+            }
+            catch (InterruptedException e) {
+                stop(running);
+                Thread.currentThread().interrupt();
+                throw new IOException("Pipeline interrupted", e);
+            }
+            catch (ExecutionException e) {
+                //a closed pipe only means a later stage finished early, it is not an error
+                if (e.getCause() instanceof Pipe.ClosedException) continue;
+                if (failure == null) failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    //interrupts every stage, closes the read ends so no producer stays blocked on a full pipe,
+    //and waits until all of them returned, the caller closes the output after this
+    private static void stop(List<Running> running)
+    {
+        for (Running stage : running)
+        {
+            if (stage.started.compareAndSet(false, true)) stage.finished.complete(null); //never ran, nothing to wait for
+            stage.future.cancel(true);
+        }
+        for (Running stage : running)
+        {
+            try {
+                if (stage.in != null) stage.in.close();
+            }
+            catch (IOException ignored) {
+            }
+        }
+        boolean interrupted = false;
+        for (Running stage : running)
+        {
+            while (true)
+            {
+                try {
+                    stage.finished.get();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true; //still waiting, the stages can be writing to the caller's output
+                }
+                catch (ExecutionException e) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
+
+//bounded queue of byte chunks between two pipeline stages
+class Pipe
+{
+    static class ClosedException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        ClosedException()
+        {
+            super("Broken pipe");
+        }
+    }
+
+    private static final byte[] END = new byte[0];
+    private final ArrayBlockingQueue<byte[]> chunks;
+    private volatile boolean readerClosed;
+
+    Pipe(int capacity)
+    {
+        chunks = new ArrayBlockingQueue<>(capacity);
+    }
+
+    private void put(byte[] chunk) throws IOException
+    {
+        try {
+            //waiting in short steps so a producer never stays blocked on a reader that already left
+            while (!chunks.offer(chunk, 100, TimeUnit.MILLISECONDS)) {
+                if (readerClosed) throw new ClosedException();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Pipe interrupted", e);
+        }
+    }
+
+    public OutputStream writeEnd()
+    {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException
+            {
+                if (readerClosed) throw new ClosedException();
+                if (length > 0) put(Arrays.copyOfRange(bytes, offset, offset + length));
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                if (!readerClosed) put(END);
+            }
+        };
+    }
+
+    public InputStream readEnd()
+    {
+        return new InputStream() {
+            private byte[] current = new byte[0];
+            private int position;
+            private boolean ended;
+
+            //takes the next chunk once the current one is used up, false at the end of the data
+            private boolean fill() throws IOException
+            {
+                while (!ended && position == current.length)
+                {
+                    try {
+                        current = chunks.take();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Pipe interrupted", e);
+                    }
+                    position = 0;
+                    if (current == END) ended = true;
+                }
+                return !ended;
+            }
+
+            @Override
+            public int read() throws IOException
+            {
+                return fill() ? current[position++] & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException
+            {
+                if (length == 0) return 0;
+                if (!fill()) return -1;
+                int count = Math.min(length, current.length - position);
+                System.arraycopy(current, position, bytes, offset, count);
+                position += count;
+                return count;
+            }
+
+            @Override
+            public void close()
+            {
+                readerClosed = true;
+                chunks.clear(); //frees a producer waiting for space
+            }
+        };
+    }
+}
+
+//line, word and byte counts of a run of bytes, computed in one pass over the bytes without allocating per line
+//counts of neighbouring runs can be merged, which is how mapped windows of one big file are combined
+class WcCounts
+{
+    static final int WORKERS = Runtime.getRuntime().availableProcessors(); //counting mapped pages keeps a core busy
+    static final int WINDOW = 64 * 1024 * 1024; //bytes mapped at a time
+    private static final int[] WORD_BYTE = new int[256]; //1 for bytes that can be part of a word
+
+    static {
+        Arrays.fill(WORD_BYTE, 1);
+        for (char space : new char[] {' ', '\t', '\n', '\u000B', '\f', '\r'}) WORD_BYTE[space] = 0;
+    }
+
+    long newlines;
+    long words;
+    long bytes;
+    boolean startsInWord; //first byte is part of a word, so it may continue a word from the previous run
+    boolean endsInWord;
+    int lastByte = -1; //-1 while no bytes were counted
+
+    static WcCounts ofFile(Path file, boolean countLines, boolean countWords) throws IOException
+    {
+        WcCounts total = new WcCounts();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if (!countLines && !countWords) { //the size alone answers -c
+                total.bytes = size;
+                return total;
+            }
+            for (long position = 0; position < size; position += WINDOW)
+            {
+                ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+                total.merge(count(window.order(ByteOrder.nativeOrder()), 0, window.limit(), countLines, countWords));
+            }
+        }
+        return total;
+    }
+
+    //same counts as ofFile, the file is cut into byte ranges that are counted on the pool and merged back in order
+    static WcCounts ofFileParallel(Path file, boolean countLines, boolean countWords, ForkJoinPool pool) throws IOException
+    {
+        return join(submit(file, countLines, countWords, pool));
+    }
+
+    //starts counting the file on the pool, for callers that count several files at once and join them in order
+    static ForkJoinTask<WcCounts> submit(Path file, boolean countLines, boolean countWords, ForkJoinPool pool)
+    {
+        return pool.submit(new FileTask(file, countLines, countWords));
+    }
+
+    //waits for a task of the pool, giving back the IOException it failed with
+    static WcCounts join(ForkJoinTask<WcCounts> task) throws IOException
+    {
+        try {
+            return task.join();
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    static class FileTask extends RecursiveTask<WcCounts>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final Path file;
+        private final boolean countLines, countWords;
+
+        FileTask(Path file, boolean countLines, boolean countWords)
+        {
+            this.file = file;
+            this.countLines = countLines;
+            this.countWords = countWords;
+        }
+
+        @Override
+        protected WcCounts compute()
+        {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+            {
+                long size = channel.size();
+                if (!countLines && !countWords) {
+                    WcCounts counts = new WcCounts();
+                    counts.bytes = size;
+                    return counts;
+                }
+                return new RangeTask(channel, 0, size, countLines, countWords).compute();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    static class RangeTask extends RecursiveTask<WcCounts>
+    {
+        private static final long serialVersionUID = 1L;
+
+        static final long SPLIT = 16 * 1024 * 1024; //ranges up to this size are counted by one worker
+        private final FileChannel channel;
+        private final long from, to;
+        private final boolean countLines, countWords;
+
+        RangeTask(FileChannel channel, long from, long to, boolean countLines, boolean countWords)
+        {
+            this.channel = channel;
+            this.from = from;
+            this.to = to;
+            this.countLines = countLines;
+            this.countWords = countWords;
+        }
+
+        @Override
+        protected WcCounts compute()
+        {
+            if (to - from <= SPLIT) {
+                if (from == to) return new WcCounts();
+                try {
+                    ByteBuffer range = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from).order(ByteOrder.nativeOrder());
+                    return count(range, 0, range.limit(), countLines, countWords);
+                }
+                catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            long middle = from + (to - from) / 2;
+            RangeTask left = new RangeTask(channel, from, middle, countLines, countWords);
+            left.fork();
+            WcCounts right = new RangeTask(channel, middle, to, countLines, countWords).compute();
+            return left.join().merge(right); //merge fixes the word cut at the middle
+        }
+    }
+
+    static WcCounts ofStream(InputStream in, boolean countLines, boolean countWords) throws IOException
+    {
+        WcCounts total = new WcCounts();
+        byte[] buffer = new byte[OutputSink.CHUNK_SIZE];
+        int length;
+        while ((length = in.read(buffer)) >= 0)
+        {
+            total.merge(count(ByteBuffer.wrap(buffer, 0, length), 0, length, countLines, countWords));
+        }
+        return total;
+    }
+
+    //counts the bytes in [from, to) of the buffer
+    static WcCounts count(ByteBuffer buffer, int from, int to, boolean countLines, boolean countWords)
+    {
+        WcCounts counts = new WcCounts();
+        counts.bytes = to - from;
+        if (from == to) return counts;
+        counts.lastByte = buffer.get(to - 1) & 0xFF;
+
+        if (countWords) {
+            //branch-free: a word starts at every word byte that follows a space
+            int previous = 0;
+            long words = 0;
+            long newlines = 0;
+            for (int i = from; i < to; i++)
+            {
+                int b = buffer.get(i) & 0xFF;
+                int wordByte = WORD_BYTE[b];
+                words += wordByte & (previous ^ 1);
+                previous = wordByte;
+                newlines += ((b ^ '\n') - 1) >>> 31; //1 only when b is \n
+            }
+            counts.words = words;
+            counts.newlines = countLines ? newlines : 0;
+            counts.startsInWord = WORD_BYTE[buffer.get(from) & 0xFF] == 1;
+            counts.endsInWord = previous == 1;
+        }
+        else if (countLines) {
+            counts.newlines = countNewlines(buffer, from, to);
+        }
+        return counts;
+    }
+
+    //counts \n bytes eight at a time (SWAR): the bytes equal to \n become zero and the zero bytes are counted
+    static long countNewlines(ByteBuffer buffer, int from, int to)
+    {
+        final long newlines = 0x0A0A0A0A0A0A0A0AL;
+        final long low7 = 0x7F7F7F7F7F7F7F7FL;
+        long count = 0;
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES)
+        {
+            long x = buffer.getLong(i) ^ newlines;
+            long zeroHighBits = ~(((x & low7) + low7) | x | low7); //high bit set exactly in the zero bytes
+            count += Long.bitCount(zeroHighBits);
+        }
+        for (; i < to; i++)
+        {
+            if (buffer.get(i) == '\n') count++;
+        }
+        return count;
+    }
+
+    //appends the counts of the run that directly follows this one
+    WcCounts merge(WcCounts next)
+    {
+        if (next.bytes == 0) return this;
+        if (bytes == 0) startsInWord = next.startsInWord;
+        words += next.words - (endsInWord && next.startsInWord ? 1 : 0); //one word split across the two runs
+        newlines += next.newlines;
+        bytes += next.bytes;
+        endsInWord = next.endsInWord;
+        lastByte = next.lastByte;
+        return this;
+    }
+
+    //like the Scanner based count this replaced, a last line without \n still counts as a line
+    long lines()
+    {
+        return newlines + (lastByte != -1 && lastByte != '\n' ? 1 : 0);
+    }
+
+    String format(boolean countLines, boolean countWords, boolean countBytes)
+    {
+        return format(lines(), words, bytes, countLines, countWords, countBytes);
+    }
+
+    static String format(long lines, long words, long bytes, boolean countLines, boolean countWords, boolean countBytes)
+    {
+        StringBuilder row = new StringBuilder();
+        if (countLines) row.append(lines);
+        if (countWords) row.append(row.length() > 0 ? " " : "").append(words);
+        if (countBytes) row.append(row.length() > 0 ? " " : "").append(bytes);
+        return row.toString();
+    }
+}
+
+//copies a directory tree: directories are created during the walk, before any of their files,
+//and the files are copied by a bounded pool of workers
+class TreeCopy
+{
+    static final int WORKERS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2); //copies wait on the disk more than on the cpu
+    static final int QUEUED_PER_WORKER = 256; //when the queue is full the walking thread copies the file itself
+    static final int PRINTED_ERRORS = 10;
+    static final long BLOCK_COPY_MIN = 8L * 1024 * 1024; //smaller files are simply copied again
+
+    //incremental mode: files whose target has the same size and modification time are skipped
+    boolean incremental;
+    boolean compareContent; //decides "unchanged" by comparing the bytes instead of the modification time
+    boolean blockCopy; //rewrites only the changed blocks of big files that already exist in the target
+    Checksums verify; //when set every copied file is read back and compared with the digest taken while copying
+
+    final LongAdder files = new LongAdder();
+    final LongAdder bytes = new LongAdder();
+    final LongAdder skipped = new LongAdder();
+    final LongAdder savedBytes = new LongAdder(); //bytes that didn't have to be written thanks to incremental mode
+    final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>(); //collected from all workers, printed once at the end
+
+    private final Path source;
+    private final Path target;
+    private final int workers;
+
+    TreeCopy(Path source, Path target, int workers)
+    {
+        this.source = source;
+        this.target = target;
+        this.workers = workers;
+    }
+
+    public void run()
+    {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workers * QUEUED_PER_WORKER), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            //walkFileTree hands over the attributes it already read, so there is no extra stat per entry
+            Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                {
+                    try {
+                        Files.createDirectories(targetOf(dir));
+                        return FileVisitResult.CONTINUE;
+                    }
+                    catch (IOException e) {
+                        fail(dir, e);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                {
+                    pool.execute(() -> copyFile(file, attrs));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e)
+                {
+                    fail(file, e);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException e) {
+            fail(source, e);
+        }
+        finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            }
+            catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    Path targetOf(Path sourcePath)
+    {
+        return target.resolve(source.relativize(sourcePath)); //get us from source to sourcePath and the same way under target
+    }
+
+    void copyFile(Path file, BasicFileAttributes attrs)
+    {
+        Path targetFile = targetOf(file);
+        try {
+            if (!incremental) {
+                if (verify != null) verify.copyVerified(file, targetFile, null);
+                else FileIO.copyFile(file, targetFile);
+            }
+            else {
+                BasicFileAttributes existing = attributesIfExists(targetFile);
+                boolean regular = existing != null && existing.isRegularFile();
+                if (regular && unchanged(file, attrs, targetFile, existing)) {
+                    skipped.increment();
+                    savedBytes.add(attrs.size());
+                    return;
+                }
+                if (regular && blockCopy && attrs.size() >= BLOCK_COPY_MIN) {
+                    copyChangedBlocks(file, targetFile, attrs.size());
+                    Files.setLastModifiedTime(targetFile, attrs.lastModifiedTime());
+                    if (verify != null) verify.verify(file, targetFile);
+                    files.increment();
+                    return;
+                }
+                //the same time lets the next run skip it
+                if (verify != null) verify.copyVerified(file, targetFile, attrs.lastModifiedTime());
+                else FileIO.copyFileKeepTime(file, targetFile, attrs.lastModifiedTime());
+            }
+            files.increment();
+            bytes.add(attrs.size());
+        }
+        catch (IOException e) {
+            fail(file, e);
+        }
+    }
+
+    private static BasicFileAttributes attributesIfExists(Path path) throws IOException
+    {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        }
+        catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private boolean unchanged(Path file, BasicFileAttributes attrs, Path targetFile, BasicFileAttributes existing) throws IOException
+    {
+        if (attrs.size() != existing.size()) return false;
+        if (compareContent) return Files.mismatch(file, targetFile) == -1;
+        //compared in milliseconds because copying the time may drop the nanoseconds (utimes keeps microseconds)
+        return attrs.lastModifiedTime().to(TimeUnit.MILLISECONDS) == existing.lastModifiedTime().to(TimeUnit.MILLISECONDS);
+    }
+
+    //compares the files block by block (one pooled buffer each) and writes only the blocks that differ,
+    //then cuts the target to the new size
+    private void copyChangedBlocks(Path file, Path targetFile, long size) throws IOException
+    {
+        try (BufferPool.Lease sourceLease = BufferPool.DEFAULT.acquire();
+             BufferPool.Lease targetLease = BufferPool.DEFAULT.acquire();
+             FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(targetFile, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            ByteBuffer sourceBlock = sourceLease.buffer;
+            ByteBuffer targetBlock = targetLease.buffer;
+            for (long position = 0; position < size; position += sourceBlock.capacity())
+            {
+                FileIO.readFully(in, sourceBlock, position);
+                FileIO.readFully(out, targetBlock, position);
+                int length = sourceBlock.remaining();
+                if (sourceBlock.equals(targetBlock)) {
+                    savedBytes.add(length);
+                    continue;
+                }
+                while (sourceBlock.hasRemaining()) out.write(sourceBlock, position + sourceBlock.position());
+                bytes.add(length);
+            }
+            out.truncate(size);
+        }
+    }
+
+    void fail(Path path, IOException e)
+    {
+        errors.add(source.relativize(path) + ": " + e.getClass().getSimpleName() + (e.getMessage() != null ? " " + e.getMessage() : ""));
+    }
+
+    public void printErrors(PrintStream console)
+    {
+        console.println("Error: " + errors.size() + " entries failed to copy");
+        int printed = 0;
+        for (String error : errors)
+        {
+            if (printed++ == PRINTED_ERRORS) {
+                console.println("  ... and " + (errors.size() - PRINTED_ERRORS) + " more");
+                break;
+            }
+            console.println("  " + error);
+        }
+    }
+}
+
+//writes a zip archive from entries that are already compressed (or stored), so the compression can happen elsewhere
+//ZipOutputStream always deflates what it is given, which is why the headers are written here directly
+//ZIP64 records are added when sizes, offsets or the entry count don't fit the classic 32/16-bit fields
+class ZipWriter implements Closeable
+{
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+
+    private final FileChannel out;
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    private final ByteBuffer header = ByteBuffer.allocate(64 * 1024 + 128).order(ByteOrder.LITTLE_ENDIAN); //fits the longest name plus the fixed fields
+    private long entries;
+
+    ZipWriter(Path archive) throws IOException
+    {
+        out = FileChannel.open(archive, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    //writes the local header and then the data, which is exactly compressedSize bytes of the channel from its start
+    public void addEntry(String name, int method, long crc, long compressedSize, long size, long modifiedMillis, FileChannel data) throws IOException
+    {
+        addEntry(name, method, crc, compressedSize, size, modifiedMillis, data, null);
+    }
+
+    public void addEntry(String name, int method, long crc, long size, long modifiedMillis, byte[] compressed) throws IOException
+    {
+        addEntry(name, method, crc, compressed.length, size, modifiedMillis, null, compressed);
+    }
+
+    private void addEntry(String name, int method, long crc, long compressedSize, long size, long modifiedMillis,
+                          FileChannel data, byte[] inMemory) throws IOException
+    {
+        long offset = out.position();
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean zip64 = size >= MAX_32 || compressedSize >= MAX_32;
+        long dosTime = dosTime(modifiedMillis);
+
+        header.clear();
+        header.putInt(0x04034b50);
+        header.putShort((short) (zip64 ? 45 : 20)); //version needed to extract
+        header.putShort((short) 0x0800); //names are UTF-8
+        header.putShort((short) method);
+        header.putInt((int) dosTime);
+        header.putInt((int) crc);
+        header.putInt((int) (zip64 ? MAX_32 : compressedSize));
+        header.putInt((int) (zip64 ? MAX_32 : size));
+        header.putShort((short) nameBytes.length);
+        header.putShort((short) (zip64 ? 20 : 0));
+        header.put(nameBytes);
+        if (zip64) {
+            header.putShort((short) 0x0001).putShort((short) 16).putLong(size).putLong(compressedSize);
+        }
+        writeHeader();
+
+        if (inMemory != null) {
+            ByteBuffer bytes = ByteBuffer.wrap(inMemory);
+            while (bytes.hasRemaining()) out.write(bytes);
+        }
+        if (data != null && FileIO.transfer(data, 0, compressedSize, out) != compressedSize) { //kernel side copy of the compressed data
+            throw new IOException("Entry data ended early: " + name);
+        }
+
+        //the central directory record, kept until close()
+        boolean sizes64 = zip64, offset64 = offset >= MAX_32;
+        int extraLength = (sizes64 || offset64) ? 4 + (sizes64 ? 16 : 0) + (offset64 ? 8 : 0) : 0;
+        header.clear();
+        header.putInt(0x02014b50);
+        header.putShort((short) 45); //version made by
+        header.putShort((short) (sizes64 || offset64 ? 45 : 20));
+        header.putShort((short) 0x0800);
+        header.putShort((short) method);
+        header.putInt((int) dosTime);
+        header.putInt((int) crc);
+        header.putInt((int) (sizes64 ? MAX_32 : compressedSize));
+        header.putInt((int) (sizes64 ? MAX_32 : size));
+        header.putShort((short) nameBytes.length);
+        header.putShort((short) extraLength);
+        header.putShort((short) 0); //comment length
+        header.putShort((short) 0); //disk number
+        header.putShort((short) 0); //internal attributes
+        header.putInt(0); //external attributes
+        header.putInt((int) (offset64 ? MAX_32 : offset));
+        header.put(nameBytes);
+        if (extraLength > 0) {
+            header.putShort((short) 0x0001).putShort((short) (extraLength - 4));
+            if (sizes64) header.putLong(size).putLong(compressedSize);
+            if (offset64) header.putLong(offset);
+        }
+        centralDirectory.write(header.array(), 0, header.position());
+        entries++;
+    }
+
+    private void writeHeader() throws IOException
+    {
+        header.flip();
+        while (header.hasRemaining()) out.write(header);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try {
+            long centralOffset = out.position();
+            long centralSize = centralDirectory.size();
+            out.write(ByteBuffer.wrap(centralDirectory.toByteArray()));
+
+            boolean zip64 = entries >= MAX_16 || centralOffset >= MAX_32 || centralSize >= MAX_32;
+            header.clear();
+            if (zip64) {
+                long zip64EndOffset = out.position();
+                header.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0)
+                        .putLong(entries).putLong(entries).putLong(centralSize).putLong(centralOffset);
+                header.putInt(0x07064b50).putInt(0).putLong(zip64EndOffset).putInt(1); //locator of the record above
+            }
+            header.putInt(0x06054b50);
+            header.putShort((short) 0).putShort((short) 0);
+            header.putShort((short) Math.min(entries, MAX_16)).putShort((short) Math.min(entries, MAX_16));
+            header.putInt((int) Math.min(centralSize, MAX_32));
+            header.putInt((int) Math.min(centralOffset, MAX_32));
+            header.putShort((short) 0); //comment length
+            writeHeader();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    //MS-DOS date and time as stored in zip headers (2 second precision, years from 1980)
+    static long dosTime(long millis)
+    {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) return (1 << 21) | (1 << 16);
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+}
+
+//zip engine: entries are compressed at the same time on a worker pool and written in order by one writer
+class ParallelZip
+{
+    static final int WORKERS = Runtime.getRuntime().availableProcessors();
+    static final int IN_FLIGHT_PER_WORKER = 4; //entries compressed ahead of the writer
+    static final long IN_MEMORY_LIMIT = 4L * 1024 * 1024; //bigger compressed entries go to a temp file
+
+    //a file to put in the archive under the given entry name
+    static class Source
+    {
+        final File file;
+        final String entryName;
+
+        Source(File file, String entryName)
+        {
+            this.file = file;
+            this.entryName = entryName;
+        }
+    }
+
+    //the result of a worker: crc and sizes, and where the bytes to copy into the archive are
+    static class Compressed
+    {
+        Source source;
+        int method;
+        long crc;
+        long size;
+        long compressedSize;
+        byte[] inMemory; //compressed bytes, or
+        Path tempFile; //compressed bytes, or neither and the original file is stored as it is
+    }
+
+    int level = Deflater.DEFAULT_COMPRESSION; //0 means store everything
+    List<String> storedSuffixes = new ArrayList<>(); //inputs that are already compressed (.jpg, .zip, ...) are stored
+
+    public long write(Path archive, List<Source> sources) throws IOException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(WORKERS);
+        ArrayDeque<Future<Compressed>> window = new ArrayDeque<>();
+        long bytes = 0;
+        try (ZipWriter writer = new ZipWriter(archive))
+        {
+            for (Source source : sources)
+            {
+                window.add(pool.submit(() -> compress(source)));
+                if (window.size() >= WORKERS * IN_FLIGHT_PER_WORKER) bytes += writeNext(writer, window);
+            }
+            while (!window.isEmpty()) bytes += writeNext(writer, window);
+        }
+        finally {
+            pool.shutdownNow();
+            for (Future<Compressed> pending : window) //temp files of entries that were never written
+            {
+                if (pending.cancel(true)) continue;
+                try {
+                    Compressed compressed = pending.get();
+                    if (compressed.tempFile != null) Files.deleteIfExists(compressed.tempFile);
+                }
+                catch (Exception ignored) {
+                }
+            }
+        }
+        return bytes;
+    }
+
+    private long writeNext(ZipWriter writer, ArrayDeque<Future<Compressed>> window) throws IOException
+    {
+        Compressed entry;
+        try {
+            entry = window.poll().get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Zip interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+
+        long modified = entry.source.file.lastModified();
+        if (entry.inMemory != null) {
+            writer.addEntry(entry.source.entryName, entry.method, entry.crc, entry.size, modified, entry.inMemory);
+        }
+        else {
+            Path dataFile = entry.tempFile != null ? entry.tempFile : entry.source.file.toPath();
+            try (FileChannel data = FileChannel.open(dataFile, StandardOpenOption.READ)) {
+                writer.addEntry(entry.source.entryName, entry.method, entry.crc, entry.compressedSize, entry.size, modified, data);
+            }
+            finally {
+                if (entry.tempFile != null) Files.deleteIfExists(entry.tempFile);
+            }
+        }
+        return entry.size;
+    }
+
+    private boolean storeOnly(Source source)
+    {
+        if (level == 0) return true;
+        String name = source.file.getName().toLowerCase();
+        for (String suffix : storedSuffixes) if (name.endsWith(suffix)) return true;
+        return false;
+    }
+
+    //runs on a worker: the crc for every entry, plus the deflated bytes unless the entry is stored
+    //the file is read through a pooled direct buffer that feeds both the crc and the deflater
+    Compressed compress(Source source) throws IOException
+    {
+        Compressed result = new Compressed();
+        result.source = source;
+        CRC32 crc = new CRC32();
+
+        if (storeOnly(source)) {
+            try (BufferPool.Lease lease = BufferPool.DEFAULT.acquire();
+                 FileChannel in = FileChannel.open(source.file.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = lease.buffer;
+                while (in.read(buffer) >= 0) {
+                    buffer.flip();
+                    result.size += buffer.remaining();
+                    crc.update(buffer);
+                    buffer.clear();
+                }
+            }
+            result.method = ZipWriter.STORED;
+            result.crc = crc.getValue();
+            result.compressedSize = result.size;
+            return result;
+        }
+
+        Deflater deflater = new Deflater(level, true); //raw deflate data, the zip headers are written by ZipWriter
+        ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        OutputStream target = memory;
+        boolean done = false;
+        try (BufferPool.Lease lease = BufferPool.DEFAULT.acquire();
+             FileChannel in = FileChannel.open(source.file.toPath(), StandardOpenOption.READ))
+        {
+            ByteBuffer buffer = lease.buffer;
+            byte[] compressed = new byte[OutputSink.CHUNK_SIZE];
+            while (in.read(buffer) >= 0)
+            {
+                buffer.flip();
+                result.size += buffer.remaining();
+                crc.update(buffer.duplicate());
+                //the deflater keeps the buffer it is given, a duplicate keeps clear() below from handing it stale bytes
+                deflater.setInput(buffer.duplicate());
+                while (!deflater.needsInput()) target = drain(deflater, compressed, memory, target, result);
+                buffer.clear();
+            }
+            deflater.finish();
+            while (!deflater.finished()) target = drain(deflater, compressed, memory, target, result);
+            done = true;
+        }
+        finally {
+            deflater.end();
+            if (target != memory) target.close();
+            if (!done && result.tempFile != null) Files.deleteIfExists(result.tempFile);
+        }
+
+        result.crc = crc.getValue();
+        if (result.compressedSize >= result.size) { //didn't shrink, storing it is smaller and faster to extract
+            if (result.tempFile != null) Files.deleteIfExists(result.tempFile);
+            result.tempFile = null;
+            result.method = ZipWriter.STORED;
+            result.compressedSize = result.size;
+            return result;
+        }
+        result.method = ZipWriter.DEFLATED;
+        if (result.tempFile == null) result.inMemory = memory.toByteArray();
+        return result;
+    }
+
+    //moves deflated bytes to the current target, switching from memory to a temp file past IN_MEMORY_LIMIT
+    private OutputStream drain(Deflater deflater, byte[] compressed, ByteArrayOutputStream memory, OutputStream target, Compressed result) throws IOException
+    {
+        int length = deflater.deflate(compressed);
+        if (target == memory && memory.size() + length > IN_MEMORY_LIMIT) {
+            result.tempFile = Files.createTempFile("zip-entry", ".deflate");
+            target = new BufferedOutputStream(new FileOutputStream(result.tempFile.toFile()), OutputSink.CHUNK_SIZE);
+            memory.writeTo(target);
+            memory.reset();
+        }
+        target.write(compressed, 0, length);
+        result.compressedSize += length;
+        return target;
+    }
+}
+
+//shell style wildcards (*, ?, [abc]) turned into a regex, matched against a name or an archive entry path
+class Glob
+{
+    static boolean isGlob(String text)
+    {
+        return text.indexOf('*') >= 0 || text.indexOf('?') >= 0 || text.indexOf('[') >= 0;
+    }
+
+    static Pattern toPattern(String glob)
+    {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++)
+        {
+            char c = glob.charAt(i);
+            if (c == '*') regex.append(".*");
+            else if (c == '?') regex.append('.');
+            else if (c == '[') {
+                int end = glob.indexOf(']', i + 1);
+                if (end < 0) {
+                    regex.append("\\[");
+                    continue;
+                }
+                String set = glob.substring(i + 1, end);
+                if (set.startsWith("!")) set = "^" + set.substring(1);
+                regex.append('[').append(set.replace("\\", "\\\\")).append(']');
+                i = end;
+            }
+            else regex.append(Pattern.quote(String.valueOf(c)));
+        }
+        return Pattern.compile(regex.toString());
+    }
+}
+
+//sorted ls listings kept per directory and patched from WatchService events, so listing a big directory again
+//costs the entries created or deleted since the last call instead of a full directory read
+//events are only used where the JDK gets them from the OS, elsewhere a listing is kept while the directory's mtime
+//stays the same
+//the number of cached directories can be set with -Dcli.listingCache=<directories>, 0 turns it off
+class DirectoryListings
+{
+    static final int MAX_DIRECTORIES = Integer.getInteger("cli.listingCache", 16);
+    static final long SETTLE_MILLIS = 50; //how long to wait for the events of a change that already shows in the mtime
+    static final long RACY_MILLIS = 2000; //mtimes can be as coarse as 2 s (FAT), a listing read that soon after a change is read again
+    //inotify on Linux and ReadDirectoryChangesW on Windows; on the other platforms the JDK's watch service is a thread that
+    //scans the registered directories every few seconds, too late to patch a listing from
+    static final boolean NATIVE_EVENTS = System.getProperty("os.name", "").startsWith("Linux") || System.getProperty("os.name", "").startsWith("Windows");
+    static final DirectoryListings SHARED = new DirectoryListings(MAX_DIRECTORIES);
+
+    private static class Listing
+    {
+        final WatchKey key; //null without native events
+        final TreeSet<String> names = new TreeSet<>();
+        FileTime syncedTime; //mtime of the directory the names are known to match
+        boolean sawEvent;    //an event arrived since syncedTime
+        boolean stale;       //overflowed or the directory is gone, read it again
+
+        Listing(WatchKey key)
+        {
+            this.key = key;
+        }
+    }
+
+    private final int maxDirectories;
+    private final HashMap<WatchKey, Listing> byKey = new HashMap<>();
+    private final LinkedHashMap<Path, Listing> listings;
+    private WatchService watcher;
+    private boolean disabled;
+
+    DirectoryListings(int maxDirectories)
+    {
+        this.maxDirectories = maxDirectories;
+        disabled = maxDirectories <= 0;
+        listings = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Path, Listing> eldest)
+            {
+                if (size() <= DirectoryListings.this.maxDirectories) return false;
+                forget(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    //the names in dir, sorted, or null when the directory can't be cached (the caller reads it itself)
+    String[] sorted(Path dir) throws IOException
+    {
+        //copied out under the lock, the caller may block writing them into a pipe
+        synchronized (this) {
+            if (!enabled()) return null;
+            if (watcher != null) drain();
+            Listing listing = listings.get(dir);
+            FileTime time = Files.getLastModifiedTime(dir);
+            if (listing != null && !listing.stale && !time.equals(listing.syncedTime)) {
+                if (watcher == null) listing.stale = true; //only the mtime to go by
+                else if (!listing.sawEvent) awaitEvent(listing);
+            }
+            if (listing != null && listing.stale) {
+                forget(listing);
+                listings.remove(dir);
+                listing = null;
+            }
+
+            if (listing == null) {
+                listing = load(dir);
+                if (listing == null) return null;
+            }
+            else {
+                listing.syncedTime = time;
+                listing.sawEvent = false;
+            }
+            return listing.names.toArray(new String[0]);
+        }
+    }
+
+    private boolean enabled()
+    {
+        if (disabled) return false;
+        if (watcher != null || !NATIVE_EVENTS) return true;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            disabled = true;
+        }
+        return !disabled;
+    }
+
+    //the watch is registered before the directory is read, so nothing changed in between goes unseen
+    private Listing load(Path dir) throws IOException
+    {
+        WatchKey key = null;
+        try {
+            if (watcher != null) key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        }
+        catch (UnsupportedOperationException e) {
+            return null;
+        }
+        Listing listing = new Listing(key);
+        listing.syncedTime = Files.getLastModifiedTime(dir);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir))
+        {
+            for (Path entry : entries) listing.names.add(entry.getFileName().toString());
+        }
+        catch (IOException e) {
+            if (key != null) key.cancel();
+            throw e;
+        }
+        if (key != null) byKey.put(key, listing);
+        //without events a change in the same mtime tick would go unseen, so the next ls reads it again
+        else if (System.currentTimeMillis() - listing.syncedTime.toMillis() < RACY_MILLIS) listing.syncedTime = null;
+        listings.put(dir, listing);
+        return listing;
+    }
+
+    //applies every event that has arrived, for all cached directories
+    private void drain()
+    {
+        WatchKey key;
+        while ((key = watcher.poll()) != null) apply(key);
+    }
+
+    //the mtime moved but no event came through yet (the watch service delivers them from its own thread)
+    private void awaitEvent(Listing listing)
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS);
+        try {
+            while (!listing.sawEvent && !listing.stale)
+            {
+                long left = deadline - System.nanoTime();
+                WatchKey key = left > 0 ? watcher.poll(left, TimeUnit.NANOSECONDS) : null;
+                if (key == null) break;
+                apply(key);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!listing.sawEvent) listing.stale = true;
+    }
+
+    private void apply(WatchKey key)
+    {
+        Listing listing = byKey.get(key);
+        for (WatchEvent<?> event : key.pollEvents())
+        {
+            if (listing == null) continue;
+            listing.sawEvent = true;
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) listing.stale = true;
+            else if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) listing.names.add(event.context().toString());
+            else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) listing.names.remove(event.context().toString());
+        }
+        if (!key.reset() && listing != null) listing.stale = true; //the directory was deleted or moved
+    }
+
+    private void forget(Listing listing)
+    {
+        if (listing.key == null) return;
+        listing.key.cancel();
+        byKey.remove(listing.key);
+    }
+}
+
+//ls with options: -l long rows (type, size, modification time), -a dot files too, -R subdirectories, -h sizes like 1.5K,
+//-U directory order. The attributes come from one walkFileTree pass per directory (depth 1, visitFile hands over the
+//attributes it read), so every entry costs a single stat. -R lists subdirectories on a pool and prints them in order
+//as soon as they and everything before them are done, at most MAX_AHEAD finished directories wait to be printed
+class DirectoryLister
+{
+    static final int WORKERS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2); //listings wait on the disk
+    static final int MAX_AHEAD = 256;
+    static final int FLUSH_CHARS = 64 * 1024;
+    static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm").withZone(ZoneId.systemDefault());
+
+    boolean longFormat;
+    boolean all;
+    boolean recursive;
+    boolean human;
+    boolean sorted = true;
+
+    private final OutputSink out;
+    private final PrintStream console; //where errors go when out is the next stage of a pipeline
+    private final AtomicInteger ahead = new AtomicInteger(); //listed or being listed, not printed yet
+    private ExecutorService pool;
+    boolean failed;
+
+    //one listed directory: its rows, and its subdirectories for -R (being listed already when the pool had room)
+    private static class Block
+    {
+        final StringBuilder text = new StringBuilder();
+        final ArrayList<Path> subdirs = new ArrayList<>();
+        final ArrayList<String> shownSubdirs = new ArrayList<>();
+        final ArrayList<Future<Block>> listing = new ArrayList<>();
+        String error;
+    }
+
+    private static class Entry
+    {
+        final String name;
+        final BasicFileAttributes attrs;
+
+        Entry(String name, BasicFileAttributes attrs)
+        {
+            this.name = name;
+            this.attrs = attrs;
+        }
+    }
+
+    DirectoryLister(OutputSink out, PrintStream console)
+    {
+        this.out = out;
+        this.console = console;
+    }
+
+    //paths are resolved already, shown is how each one is named in headers and rows
+    void run(List<Path> paths, List<String> shown) throws IOException
+    {
+        if (recursive) pool = Executors.newFixedThreadPool(WORKERS, runnable -> {
+            Thread thread = new Thread(runnable, "ls-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            boolean headers = recursive || paths.size() > 1;
+            boolean first = true;
+            for (int i = 0; i < paths.size(); i++)
+            {
+                Path path = paths.get(i);
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                }
+                catch (IOException e) {
+                    error("Error: " + shown.get(i) + " NOT FOUND");
+                    continue;
+                }
+                if (!attrs.isDirectory()) { //a file argument lists just itself
+                    StringBuilder row = new StringBuilder();
+                    appendRow(row, shown.get(i), path, attrs);
+                    out.print(row.toString());
+                    first = false;
+                    continue;
+                }
+                if (!first) out.println("");
+                first = false;
+                printTree(path, shown.get(i), headers);
+            }
+        }
+        finally {
+            if (pool != null) pool.shutdownNow();
+        }
+    }
+
+    //depth first like ls -R, each block is taken as soon as it is ready
+    private void printTree(Path root, String shown, boolean headers) throws IOException
+    {
+        ArrayDeque<Object[]> stack = new ArrayDeque<>(); //{path, shown name, Future<Block> or null}
+        stack.push(new Object[] {root, shown, null});
+        boolean first = true;
+        while (!stack.isEmpty())
+        {
+            Object[] next = stack.pop();
+            @SuppressWarnings("unchecked")
+            Future<Block> listing = (Future<Block>) next[2];
+            Block block = listing == null ? list((Path) next[0], (String) next[1], true) : join(listing);
+            if (listing != null) ahead.decrementAndGet();
+
+            if (!first) out.println("");
+            first = false;
+            if (headers) out.println(next[1] + ":");
+            if (block.error != null) error(block.error);
+            out.print(block.text.toString());
+            for (int i = block.subdirs.size() - 1; i >= 0; i--)
+                stack.push(new Object[] {block.subdirs.get(i), block.shownSubdirs.get(i), block.listing.get(i)});
+        }
+    }
+
+    private void error(String message) throws IOException
+    {
+        failed = true;
+        if (out.feedsStage()) console.println(message);
+        else out.println(message);
+    }
+
+    private Block join(Future<Block> listing) throws IOException
+    {
+        try {
+            return listing.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("ls interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    //direct is set on the printing thread, it writes big blocks out as it goes instead of holding them
+    private Block list(Path dir, String shown, boolean direct) throws IOException
+    {
+        Block block = new Block();
+        if (!longFormat && !recursive) listNames(dir, block, direct);
+        else listEntries(dir, block, direct);
+
+        if (recursive) {
+            for (int i = 0; i < block.subdirs.size(); i++)
+            {
+                Path subdir = block.subdirs.get(i);
+                String name = shown.endsWith("/") ? shown + subdir.getFileName() : shown + "/" + subdir.getFileName();
+                block.shownSubdirs.add(name);
+                Future<Block> listing = null;
+                if (ahead.incrementAndGet() <= MAX_AHEAD) listing = pool.submit(() -> list(subdir, name, false));
+                else ahead.decrementAndGet(); //the printer lists this one itself when it gets there
+                block.listing.add(listing);
+            }
+        }
+        return block;
+    }
+
+    //plain names need no attributes, sorted ones come from the listing cache when it has the directory
+    private void listNames(Path dir, Block block, boolean direct) throws IOException
+    {
+        String[] names = sorted ? DirectoryListings.SHARED.sorted(dir) : null;
+        if (names != null) {
+            for (String name : names)
+            {
+                if (!all && name.startsWith(".")) continue;
+                block.text.append(name).append(System.lineSeparator());
+                if (direct) flushIfFull(block.text);
+            }
+            return;
+        }
+
+        ArrayList<String> read = sorted ? new ArrayList<>() : null;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir))
+        {
+            for (Path entry : entries)
+            {
+                String name = entry.getFileName().toString();
+                if (!all && name.startsWith(".")) continue;
+                if (sorted) read.add(name);
+                else {
+                    block.text.append(name).append(System.lineSeparator());
+                    if (direct) flushIfFull(block.text);
+                }
+            }
+        }
+        if (sorted) {
+            Collections.sort(read);
+            for (String name : read)
+            {
+                block.text.append(name).append(System.lineSeparator());
+                if (direct) flushIfFull(block.text);
+            }
+        }
+    }
+
+    private void listEntries(Path dir, Block block, boolean direct) throws IOException
+    {
+        ArrayList<Entry> entries = new ArrayList<>();
+        try {
+            Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException
+                {
+                    String name = file.getFileName().toString();
+                    if (!all && name.startsWith(".")) return FileVisitResult.CONTINUE;
+                    if (sorted) entries.add(new Entry(name, attrs));
+                    else add(block, dir, name, attrs, direct);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e)
+                {
+                    if (file.equals(dir)) block.error = "Error: CANNOT OPEN " + dir;
+                    return FileVisitResult.CONTINUE; //an entry that vanished in the meantime is just left out
+                }
+            });
+        }
+        catch (IOException e) {
+            block.error = "Error: CANNOT OPEN " + dir;
+        }
+        if (sorted) {
+            entries.sort((a, b) -> a.name.compareTo(b.name));
+            for (Entry entry : entries) add(block, dir, entry.name, entry.attrs, direct);
+        }
+    }
+
+    private void add(Block block, Path dir, String name, BasicFileAttributes attrs, boolean direct) throws IOException
+    {
+        if (longFormat) appendRow(block.text, name, dir.resolve(name), attrs);
+        else block.text.append(name).append(System.lineSeparator());
+        if (recursive && attrs.isDirectory()) block.subdirs.add(dir.resolve(name)); //links to directories aren't followed
+        if (direct) flushIfFull(block.text);
+    }
+
+    private void flushIfFull(StringBuilder text) throws IOException
+    {
+        if (text.length() < FLUSH_CHARS) return;
+        out.print(text.toString());
+        text.setLength(0);
+    }
+
+    //-rw layout without the permissions, they aren't part of the basic attributes: type, size, time, name
+    private void appendRow(StringBuilder row, String name, Path path, BasicFileAttributes attrs)
+    {
+        if (!longFormat) {
+            row.append(name).append(System.lineSeparator());
+            return;
+        }
+        char type = attrs.isDirectory() ? 'd' : attrs.isSymbolicLink() ? 'l' : attrs.isRegularFile() ? '-' : '?';
+        String size = human ? humanSize(attrs.size()) : Long.toString(attrs.size());
+        row.append(type).append(' ');
+        for (int i = size.length(); i < 12; i++) row.append(' ');
+        row.append(size).append(' ');
+        TIME_FORMAT.formatTo(attrs.lastModifiedTime().toInstant(), row);
+        row.append(' ').append(name);
+        if (attrs.isSymbolicLink()) {
+            try {
+                row.append(" -> ").append(Files.readSymbolicLink(path));
+            }
+            catch (IOException e) {
+                //the row still shows the link itself
+            }
+        }
+        row.append(System.lineSeparator());
+    }
+
+    //1023, 1.0K, 15K, 2.3M... rounded up like ls -h
+    static String humanSize(long bytes)
+    {
+        if (bytes < 1024) return Long.toString(bytes);
+        String units = "KMGTPE";
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length() - 1)
+        {
+            value /= 1024;
+            unit++;
+        }
+        double tenths = Math.ceil(value * 10) / 10;
+        if (tenths < 10) return String.format("%.1f%c", tenths, units.charAt(unit));
+        return String.format("%.0f%c", Math.ceil(value), units.charAt(unit));
+    }
+}
+
+//du: sizes of directory trees (the total length of their files), walked with one fork/join task per directory.
+//Every directory has a LongAdder that its files and, when they finish, its subdirectories add into.
+//With the cache on, a directory whose mtime didn't change reuses the size of its own files and its list of
+//subdirectories from the last scan, so only the directories are stat'ed again. A directory's mtime only moves when
+//entries are added, removed or renamed, files rewritten in place go unnoticed, that's why the cache is opt-in.
+//the cache file can be set with -Dcli.duCache=<file>
+class DiskUsage
+{
+    static final int WORKERS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2); //the walk waits on the disk
+    static final Path CACHE_FILE = Paths.get(System.getProperty("cli.duCache", Paths.get(System.getProperty("user.home"), ".cli-du-cache").toString()));
+    private static final int CACHE_MAGIC = 0x44554331; //"DUC1"
+    static final int PRINTED_ERRORS = 10;
+
+    //what a scan learned about one directory, without its subtrees
+    static class Cached
+    {
+        final long mtime; //nanoseconds
+        final long ownBytes;
+        final String[] subdirs;
+
+        Cached(long mtime, long ownBytes, String[] subdirs)
+        {
+            this.mtime = mtime;
+            this.ownBytes = ownBytes;
+            this.subdirs = subdirs;
+        }
+    }
+
+    static class Node
+    {
+        final Path path;
+        final String shown;
+        final int depth;
+        final LongAdder bytes = new LongAdder();
+        final ArrayList<Node> children = new ArrayList<>(); //only kept down to the printed depth
+
+        Node(Path path, String shown, int depth)
+        {
+            this.path = path;
+            this.shown = shown;
+            this.depth = depth;
+        }
+    }
+
+    final int maxDepth; //deepest directories printed, 0 is the argument itself
+    final boolean useCache;
+    final LongAdder directories = new LongAdder();
+    final LongAdder cacheHits = new LongAdder();
+    final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, Cached> cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Boolean> visited = new ConcurrentHashMap<>();
+
+    DiskUsage(int maxDepth, boolean useCache)
+    {
+        this.maxDepth = maxDepth;
+        this.useCache = useCache;
+        if (useCache) loadCache();
+    }
+
+    Node scan(Path root, String shown, ForkJoinPool pool)
+    {
+        Node node = new Node(root, shown, 0);
+        pool.invoke(new DirectoryTask(null, node));
+        return node;
+    }
+
+    //forks its subdirectories without waiting for them, a directory is added to its parent once its last subtask
+    //completed, so no worker blocks per level and the stack doesn't grow with the depth of the tree
+    class DirectoryTask extends CountedCompleter<Void>
+    {
+        private static final long serialVersionUID = 1L;
+
+        final Node node;
+
+        DirectoryTask(DirectoryTask parent, Node node)
+        {
+            super(parent);
+            this.node = node;
+        }
+
+        @Override
+        public void compute()
+        {
+            directories.increment();
+            Cached listing = read(node.path);
+            if (listing != null) {
+                node.bytes.add(listing.ownBytes);
+                for (String name : listing.subdirs)
+                {
+                    Node child = new Node(node.path.resolve(name), node.shown.endsWith("/") ? node.shown + name : node.shown + "/" + name, node.depth + 1);
+                    if (child.depth <= maxDepth) node.children.add(child);
+                    addToPendingCount(1);
+                    new DirectoryTask(this, child).fork();
+                }
+            }
+            tryComplete();
+        }
+
+        @Override
+        public void onCompletion(CountedCompleter<?> caller)
+        {
+            DirectoryTask parent = (DirectoryTask) getCompleter();
+            if (parent != null) parent.node.bytes.add(node.bytes.sum()); //every subtask is done, the subtree is complete
+        }
+    }
+
+    //own file sizes and subdirectories of dir, from the cache when its mtime still matches
+    private Cached read(Path dir)
+    {
+        String key = dir.toString();
+        try {
+            long mtime = Files.getLastModifiedTime(dir, LinkOption.NOFOLLOW_LINKS).to(TimeUnit.NANOSECONDS);
+            if (useCache) {
+                visited.put(key, Boolean.TRUE);
+                Cached known = cache.get(key);
+                if (known != null && known.mtime == mtime) {
+                    cacheHits.increment();
+                    return known;
+                }
+            }
+
+            long[] ownBytes = new long[1];
+            ArrayList<String> subdirs = new ArrayList<>();
+            //depth 1, visitFile gets the attributes walkFileTree already read for every entry
+            Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                {
+                    if (attrs.isDirectory()) subdirs.add(file.getFileName().toString()); //links to directories aren't followed
+                    else ownBytes[0] += attrs.size();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e)
+                {
+                    errors.add(file + ": " + e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            Collections.sort(subdirs);
+            Cached fresh = new Cached(mtime, ownBytes[0], subdirs.toArray(new String[0]));
+            if (useCache) cache.put(key, fresh);
+            return fresh;
+        }
+        catch (IOException e) {
+            errors.add(dir + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void loadCache()
+    {
+        if (!Files.exists(CACHE_FILE)) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(CACHE_FILE))))
+        {
+            if (in.readInt() != CACHE_MAGIC) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                String path = in.readUTF();
+                long mtime = in.readLong();
+                long ownBytes = in.readLong();
+                String[] subdirs = new String[in.readInt()];
+                for (int j = 0; j < subdirs.length; j++) subdirs[j] = in.readUTF();
+                cache.put(path, new Cached(mtime, ownBytes, subdirs));
+            }
+        }
+        catch (IOException e) {
+            cache.clear(); //a broken cache is the same as none
+        }
+    }
+
+    //directories under the scanned roots that weren't seen this time are gone, everything else is kept
+    void saveCache(List<Path> roots) throws IOException
+    {
+        if (!useCache) return;
+        for (String path : new ArrayList<>(cache.keySet()))
+        {
+            if (visited.containsKey(path)) continue;
+            for (Path root : roots)
+            {
+                if (Paths.get(path).startsWith(root)) {
+                    cache.remove(path);
+                    break;
+                }
+            }
+        }
+
+        //a temp file of its own, so two du --cache running at once (a background job) never write into the same file
+        Path temp = Files.createTempFile(CACHE_FILE.toAbsolutePath().getParent(), CACHE_FILE.getFileName() + ".", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))
+            {
+                out.writeInt(CACHE_MAGIC);
+                out.writeInt(cache.size());
+                for (Map.Entry<String, Cached> entry : cache.entrySet())
+                {
+                    Cached known = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(known.mtime);
+                    out.writeLong(known.ownBytes);
+                    out.writeInt(known.subdirs.length);
+                    for (String name : known.subdirs) out.writeUTF(name);
+                }
+            }
+            Files.move(temp, CACHE_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE); //a crash never leaves half a cache
+        }
+        finally {
+            Files.deleteIfExists(temp); //only still there when writing or moving failed
+        }
+    }
+
+    //children before their parent, like du
+    static void print(Node node, boolean human, OutputSink out) throws IOException
+    {
+        for (Node child : node.children) print(child, human, out);
+        long bytes = node.bytes.sum();
+        out.println((human ? DirectoryLister.humanSize(bytes) : Long.toString(bytes)) + "\t" + node.shown);
+    }
+}
+
+//walks a directory tree with the directories read in parallel, and hands every entry to the calling thread in
+//depth first order sorted by name (an entry, then everything under it when it is a directory), like find prints them.
+//Entries come with the attributes walkFileTree read for them, and at most MAX_AHEAD directories are read ahead.
+class TreeWalk implements Closeable
+{
+    static final int WORKERS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2); //reading directories waits on the disk
+    static final int MAX_AHEAD = 256;
+
+    interface Visitor
+    {
+        void visit(Path path, String shown, BasicFileAttributes attrs) throws IOException;
+
+        void failed(Path path, String shown, IOException e) throws IOException;
+    }
+
+    private static class Entry
+    {
+        final Path path;
+        final BasicFileAttributes attrs;
+        Future<Listing> listing; //read ahead on the pool, null for files or when there was no room
+
+        Entry(Path path, BasicFileAttributes attrs)
+        {
+            this.path = path;
+            this.attrs = attrs;
+        }
+    }
+
+    private static class Listing
+    {
+        final ArrayList<Entry> entries = new ArrayList<>();
+        IOException error;
+    }
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(WORKERS, runnable -> {
+        Thread thread = new Thread(runnable, "walk-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger ahead = new AtomicInteger(); //directories read or being read, not visited yet
+
+    void walk(Path root, String shown, Visitor visitor) throws IOException
+    {
+        BasicFileAttributes rootAttrs;
+        try {
+            rootAttrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        catch (IOException e) {
+            visitor.failed(root, shown, e);
+            return;
+        }
+        visitor.visit(root, shown, rootAttrs);
+        if (!rootAttrs.isDirectory()) return;
+
+        ArrayDeque<Object[]> stack = new ArrayDeque<>(); //{Listing, shown name of its directory, index of the next entry}
+        Listing first = list(root);
+        if (first.error != null) visitor.failed(root, shown, first.error);
+        stack.push(new Object[] {first, shown, 0});
+        while (!stack.isEmpty())
+        {
+            Object[] frame = stack.peek();
+            Listing listing = (Listing) frame[0];
+            int next = (int) frame[2];
+            if (next == listing.entries.size()) {
+                stack.pop();
+                continue;
+            }
+            frame[2] = next + 1;
+
+            Entry entry = listing.entries.get(next);
+            String parent = (String) frame[1];
+            String name = parent.endsWith("/") ? parent + entry.path.getFileName() : parent + "/" + entry.path.getFileName();
+            visitor.visit(entry.path, name, entry.attrs);
+            if (!entry.attrs.isDirectory()) continue; //links to directories aren't followed
+
+            Listing below;
+            if (entry.listing == null) below = list(entry.path);
+            else {
+                below = join(entry.listing);
+                ahead.decrementAndGet();
+            }
+            if (below.error != null) visitor.failed(entry.path, name, below.error);
+            stack.push(new Object[] {below, name, 0});
+        }
+    }
+
+    //one directory, its subdirectories are handed to the pool right away while there is room
+    private Listing list(Path dir)
+    {
+        Listing listing = new Listing();
+        try {
+            Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                {
+                    listing.entries.add(new Entry(file, attrs));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e)
+                {
+                    if (file.equals(dir)) listing.error = e;
+                    return FileVisitResult.CONTINUE; //an entry that vanished in the meantime is just left out
+                }
+            });
+        }
+        catch (IOException e) {
+            listing.error = e;
+        }
+
+        listing.entries.sort((a, b) -> a.path.getFileName().toString().compareTo(b.path.getFileName().toString()));
+        for (Entry entry : listing.entries)
+        {
+            if (!entry.attrs.isDirectory()) continue;
+            if (ahead.incrementAndGet() <= MAX_AHEAD) entry.listing = pool.submit(() -> list(entry.path));
+            else ahead.decrementAndGet(); //the walking thread reads this one itself when it gets there
+        }
+        return listing;
+    }
+
+    private Listing join(Future<Listing> listing) throws IOException
+    {
+        try {
+            return listing.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Walk interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        pool.shutdownNow();
+    }
+}
+
+//grep: lines matching a Java regular expression. Files are read through mapped windows, and when the pattern has a
+//plain text part every match must contain, that text is looked up with a byte search first, so only the lines
+//around a hit are decoded and run through the regex. A pattern that is only plain text skips the regex completely.
+class Grep
+{
+    static final int WORKERS = Runtime.getRuntime().availableProcessors();
+    static final int IN_FLIGHT_PER_WORKER = 4; //files searched ahead of the one being printed
+    static final int WINDOW = 64 * 1024 * 1024; //bytes mapped at a time
+    static final int BINARY_CHECK = 8 * 1024; //a zero byte in here makes the file binary, like grep
+
+    final Pattern pattern;
+    final byte[] literal; //null when there is nothing to prefilter with
+    final boolean literalOnly;
+    boolean lineNumbers;
+    boolean countOnly;
+    boolean showNames;
+
+    Grep(String regex, boolean ignoreCase)
+    {
+        pattern = Pattern.compile(regex, ignoreCase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0);
+        String required = ignoreCase ? null : requiredLiteral(regex);
+        literal = required == null ? null : required.getBytes(StandardCharsets.UTF_8);
+        literalOnly = literal != null && required.equals(regex);
+    }
+
+    //the longest run of plain characters every match has to contain, or null
+    //gives up on alternations and inline flags, skips groups and classes, and a character followed by ?, * or {} doesn't count
+    static String requiredLiteral(String regex)
+    {
+        if (regex.indexOf('|') >= 0 || regex.contains("(?") || regex.contains("\\Q")) return null;
+        String best = "";
+        StringBuilder run = new StringBuilder();
+        for (int i = 0; i < regex.length(); i++)
+        {
+            char c = regex.charAt(i);
+            int literal = -1;
+            if (c == '\\') {
+                if (++i == regex.length()) return null;
+                char escaped = regex.charAt(i);
+                if (!Character.isLetterOrDigit(escaped)) literal = escaped; //\. \* \\ ... are the character itself
+            }
+            else if (c == '?' || c == '*' || c == '{') {
+                if (run.length() > 0) run.setLength(run.length() - 1); //the character before may not be there
+                if (c == '{') i = Math.max(i, regex.indexOf('}', i));
+            }
+            else if (c == '[') i = classEnd(regex, i);
+            else if (c == '(') i = groupEnd(regex, i);
+            else if (c != '.' && c != '+' && c != '^' && c != '$' && c != ')' && c != ']' && c != '}') literal = c;
+
+            if (literal >= 0) {
+                run.append((char) literal);
+                continue;
+            }
+            if (run.length() > best.length()) best = run.toString();
+            run.setLength(0);
+            if (c == '+' && i + 1 < regex.length() && regex.charAt(i + 1) == '?') i++;
+        }
+        if (run.length() > best.length()) best = run.toString();
+        return best.isEmpty() ? null : best;
+    }
+
+    private static int classEnd(String regex, int open)
+    {
+        int i = open + 1;
+        if (i < regex.length() && regex.charAt(i) == '^') i++;
+        if (i < regex.length() && regex.charAt(i) == ']') i++;
+        for (; i < regex.length(); i++)
+        {
+            if (regex.charAt(i) == '\\') i++;
+            else if (regex.charAt(i) == ']') return i;
+        }
+        return regex.length();
+    }
+
+    private static int groupEnd(String regex, int open)
+    {
+        int depth = 0;
+        for (int i = open; i < regex.length(); i++)
+        {
+            char c = regex.charAt(i);
+            if (c == '\\') i++;
+            else if (c == '[') i = classEnd(regex, i);
+            else if (c == '(') depth++;
+            else if (c == ')' && --depth == 0) return i;
+        }
+        return regex.length();
+    }
+
+    //searches one file and writes its output, returns the number of matching lines
+    long searchFile(Path file, String shown, OutputStream out) throws IOException
+    {
+        Search search = new Search(shown, out);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            long position = 0;
+            while (position < size && !search.done)
+            {
+                long length = Math.min(WINDOW, size - position);
+                ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.nativeOrder());
+                int end = (int) length;
+                //windows end after a newline so no line is split between two of them, a line longer than a window gets a bigger one
+                while (position + length < size)
+                {
+                    int lastNewline = lastIndexOf(window, (byte) '\n', (int) length);
+                    if (lastNewline >= 0) {
+                        end = lastNewline + 1;
+                        break;
+                    }
+                    if (length >= Integer.MAX_VALUE / 2) break; //split it after all
+                    length = Math.min(length * 2, size - position);
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.nativeOrder());
+                    end = (int) length;
+                }
+                if (position == 0) search.binary = indexOf(window, (byte) 0, 0, Math.min(end, BINARY_CHECK)) >= 0;
+                search.window(window, end);
+                position += end;
+            }
+        }
+        search.finish();
+        return search.matches;
+    }
+
+    //the previous pipeline stage, line by line
+    long searchStream(InputStream in, OutputStream out) throws IOException
+    {
+        Search search = new Search(null, out);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), OutputSink.CHUNK_SIZE);
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            if (pattern.matcher(line).find()) search.emit(line.getBytes(StandardCharsets.UTF_8), 0, -1);
+            search.line++;
+        }
+        search.finish();
+        return search.matches;
+    }
+
+    //the state of one file being searched
+    private class Search
+    {
+        final String shown;
+        final OutputStream out;
+        long line = 1; //number of the line the next search starts in
+        long matches;
+        boolean binary;
+        boolean done;
+        byte[] scratch = new byte[256];
+        final Matcher matcher = pattern.matcher("");
+        final AsciiLine ascii = new AsciiLine();
+
+        Search(String shown, OutputStream out)
+        {
+            this.shown = shown;
+            this.out = out;
+        }
+
+        //ASCII lines are matched in place, others are decoded first
+        boolean matches(int length)
+        {
+            boolean isAscii = true;
+            for (int i = 0; i < length && isAscii; i++) isAscii = scratch[i] >= 0;
+            if (!isAscii) return matcher.reset(new String(scratch, 0, length, StandardCharsets.UTF_8)).find();
+            ascii.bytes = scratch;
+            ascii.length = length;
+            return matcher.reset(ascii).find();
+        }
+
+        void window(ByteBuffer buffer, int end) throws IOException
+        {
+            int from = 0;
+            while (from < end && !done)
+            {
+                int lineStart = from;
+                if (literal != null) {
+                    int hit = find(buffer, from, end);
+                    if (hit < 0) {
+                        if (lineNumbers) line += WcCounts.countNewlines(buffer, from, end);
+                        return;
+                    }
+                    lineStart = lastIndexOf(buffer, (byte) '\n', hit, from) + 1;
+                    if (lineNumbers) line += WcCounts.countNewlines(buffer, from, lineStart);
+                }
+                int lineEnd = indexOf(buffer, (byte) '\n', lineStart, end);
+                if (lineEnd < 0) lineEnd = end;
+
+                int length = lineEnd - lineStart;
+                if (length > scratch.length) scratch = new byte[Math.max(length, scratch.length * 2)];
+                buffer.get(lineStart, scratch, 0, length);
+                if (literalOnly || matches(length)) emit(scratch, 0, length);
+                line++;
+                from = lineEnd + 1;
+            }
+        }
+
+        //length -1 means the whole array
+        void emit(byte[] bytes, int offset, int length) throws IOException
+        {
+            matches++;
+            if (countOnly) return;
+            if (binary) {
+                out.write(("Binary file " + shown + " matches" + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+                done = true;
+                return;
+            }
+            if (showNames) out.write((shown + ":").getBytes(StandardCharsets.UTF_8));
+            if (lineNumbers) out.write((line + ":").getBytes(StandardCharsets.UTF_8));
+            out.write(bytes, offset, length < 0 ? bytes.length : length);
+            out.write(System.lineSeparator().getBytes(StandardCharsets.UTF_8));
+        }
+
+        void finish() throws IOException
+        {
+            if (!countOnly) return;
+            String count = showNames ? shown + ":" + matches : Long.toString(matches);
+            out.write((count + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    //chars of an ASCII line without copying it into a String
+    private static class AsciiLine implements CharSequence
+    {
+        byte[] bytes;
+        int offset;
+        int length;
+
+        @Override
+        public int length()
+        {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index)
+        {
+            return (char) bytes[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end)
+        {
+            return new String(bytes, offset + start, end - start, StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public String toString()
+        {
+            return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+        }
+    }
+
+    //next occurrence of the literal in [from, to), found by its first byte
+    private int find(ByteBuffer buffer, int from, int to)
+    {
+        byte first = literal[0];
+        int last = to - literal.length;
+        for (int i = indexOf(buffer, first, from, to); i >= 0 && i <= last; i = indexOf(buffer, first, i + 1, to))
+        {
+            int j = 1;
+            while (j < literal.length && buffer.get(i + j) == literal[j]) j++;
+            if (j == literal.length) return i;
+        }
+        return -1;
+    }
+
+    //first position of b in [from, to), eight bytes at a time like WcCounts.countNewlines
+    static int indexOf(ByteBuffer buffer, byte b, int from, int to)
+    {
+        final long pattern = (b & 0xFFL) * 0x0101010101010101L;
+        final long low7 = 0x7F7F7F7F7F7F7F7FL;
+        boolean littleEndian = buffer.order() == ByteOrder.LITTLE_ENDIAN;
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES)
+        {
+            long x = buffer.getLong(i) ^ pattern;
+            long zeroHighBits = ~(((x & low7) + low7) | x | low7); //high bit set exactly in the bytes equal to b
+            if (zeroHighBits != 0) return i + (littleEndian ? Long.numberOfTrailingZeros(zeroHighBits) : Long.numberOfLeadingZeros(zeroHighBits)) / 8;
+        }
+        for (; i < to; i++)
+        {
+            if (buffer.get(i) == b) return i;
+        }
+        return -1;
+    }
+
+    //last position of b in [0, to)
+    static int lastIndexOf(ByteBuffer buffer, byte b, int to)
+    {
+        return lastIndexOf(buffer, b, to, 0);
+    }
+
+    //last position of b in [from, to), from - 1 when there is none
+    static int lastIndexOf(ByteBuffer buffer, byte b, int to, int from)
+    {
+        for (int i = to - 1; i >= from; i--)
+        {
+            if (buffer.get(i) == b) return i;
+        }
+        return from - 1;
+    }
+}
+
+//rm -r: removes directory trees on a fork/join pool, one CountedCompleter per directory. A directory task deletes its
+//files and forks one task per subdirectory (forked tasks run newest first, so the walk goes depth first), and the
+//directory itself is deleted in onCompletion once all of them are done. Completion climbs to the parent in a loop,
+//not by recursion, so deep trees don't hit stack limits.
+class TreeDelete
+{
+    static final int WORKERS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2); //deletes wait on the disk more than on the cpu
+    static final int PRINTED_ERRORS = 10;
+
+    final LongAdder files = new LongAdder();
+    final LongAdder directories = new LongAdder();
+    final ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+    private final ForkJoinPool pool;
+
+    TreeDelete(int workers)
+    {
+        pool = new ForkJoinPool(workers);
+    }
+
+    //a file or link is deleted right away, a directory with everything in it
+    void delete(Path path, String shown)
+    {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS); //a link to a directory is removed, not followed
+        }
+        catch (IOException e) {
+            fail(shown, e);
+            return;
+        }
+        if (!attrs.isDirectory()) deleteFile(path, shown);
+        else pool.invoke(new DirectoryTask(null, path, shown));
+    }
+
+    void shutdown()
+    {
+        pool.shutdown();
+    }
+
+    private void deleteFile(Path path, String shown)
+    {
+        try {
+            Files.delete(path);
+            files.increment();
+        }
+        catch (IOException e) {
+            fail(shown, e);
+        }
+    }
+
+    private void fail(String shown, IOException e)
+    {
+        String reason = e instanceof NoSuchFileException ? "NOT FOUND"
+                : e instanceof DirectoryNotEmptyException ? "NOT EMPTY"
+                : e.getClass().getSimpleName() + (e.getMessage() != null ? " " + e.getMessage() : "");
+        errors.add(shown + ": " + reason);
+    }
+
+    class DirectoryTask extends CountedCompleter<Void>
+    {
+        private static final long serialVersionUID = 1L;
+
+        final Path dir;
+        final String shown;
+
+        DirectoryTask(DirectoryTask parent, Path dir, String shown)
+        {
+            super(parent);
+            this.dir = dir;
+            this.shown = shown;
+        }
+
+        @Override
+        public void compute()
+        {
+            try {
+                //depth 1, the attributes come with the entries
+                Files.walkFileTree(dir, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+                    {
+                        String name = shown + "/" + file.getFileName();
+                        if (attrs.isDirectory()) {
+                            addToPendingCount(1);
+                            new DirectoryTask(DirectoryTask.this, file, name).fork();
+                        }
+                        else deleteFile(file, name);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException e)
+                    {
+                        if (!(e instanceof NoSuchFileException)) fail(file.equals(dir) ? shown : shown + "/" + file.getFileName(), e);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            }
+            catch (IOException e) {
+                fail(shown, e);
+            }
+            tryComplete();
+        }
+
+        @Override
+        public void onCompletion(CountedCompleter<?> caller)
+        {
+            try {
+                Files.delete(dir);
+                directories.increment();
+            }
+            catch (IOException e) { //NOT EMPTY when something inside failed, or was added while we were deleting
+                fail(shown, e);
+            }
+        }
+    }
+
+    public void printErrors(PrintStream console)
+    {
+        console.println("Error: " + errors.size() + " entries could not be removed");
+        int printed = 0;
+        for (String error : errors)
+        {
+            if (printed++ == PRINTED_ERRORS) {
+                console.println("  ... and " + (errors.size() - PRINTED_ERRORS) + " more");
+                break;
+            }
+            console.println("  " + error);
+        }
+    }
+}
+
+//sha256 digests for sum / sha256sum and cp --verify: big files are read through mapped windows, the files of a command are
+//hashed in parallel by the caller, and the digests are kept in a cache file keyed by (path, size, mtime, inode), so a file
+//that didn't change is never read again. The cache file is ~/.cli-sum-cache unless -Dcli.sumCache points elsewhere.
+class Checksums
+{
+    static final int WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors()); //hashing keeps a core busy
+    static final int IN_FLIGHT_PER_WORKER = 4;
+    static final long WINDOW = 64L * 1024 * 1024; //mapped at a time
+    static final long MAP_MIN = 1024 * 1024; //smaller files go through a pooled buffer, mapping them costs more than it saves
+    static final int CACHE_LIMIT = Integer.getInteger("cli.sumCacheSize", 100_000); //entries kept in the file
+    static final Path CACHE_FILE = Paths.get(System.getProperty("cli.sumCache", Paths.get(System.getProperty("user.home"), ".cli-sum-cache").toString()));
+    private static final int CACHE_MAGIC = 0x53554d31; //"SUM1"
+
+    static class Cached
+    {
+        final long size;
+        final long mtime; //nanoseconds
+        final String inode; //the file key, "(dev=..,ino=..)" on Linux
+        final byte[] digest;
+
+        Cached(long size, long mtime, String inode, byte[] digest)
+        {
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+            this.digest = digest;
+        }
+
+        boolean matches(BasicFileAttributes attrs)
+        {
+            return size == attrs.size() && mtime == attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS) && inode.equals(String.valueOf(attrs.fileKey()));
+        }
+    }
+
+    final boolean useCache;
+    final LongAdder hashedBytes = new LongAdder();
+    final LongAdder cacheHits = new LongAdder();
+    final LongAdder verified = new LongAdder();
+    private final ConcurrentHashMap<String, Cached> cache = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Boolean> used = new ConcurrentHashMap<>(); //looked up or added by this command
+    private volatile boolean changed;
+
+    Checksums(boolean useCache)
+    {
+        this.useCache = useCache;
+        if (useCache) loadCache();
+    }
+
+    static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); //every Java runtime has to provide SHA-256
+        }
+    }
+
+    static ExecutorService newPool()
+    {
+        return Executors.newFixedThreadPool(WORKERS, runnable -> {
+            Thread thread = new Thread(runnable, "sum-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static String hex(byte[] digest)
+    {
+        StringBuilder text = new StringBuilder(digest.length * 2);
+        for (byte b : digest) text.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+        return text.toString();
+    }
+
+    //digest of the file, from the cache when its size, mtime and inode still match
+    byte[] digest(Path file) throws IOException
+    {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        if (attrs.isDirectory()) throw new IOException("IS A DIRECTORY");
+        String key = file.toString();
+        if (useCache) {
+            Cached known = cache.get(key);
+            used.put(key, Boolean.TRUE);
+            if (known != null && known.matches(attrs)) {
+                cacheHits.increment();
+                return known.digest;
+            }
+        }
+        byte[] digest;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            digest = hash(channel);
+        }
+        remember(file, attrs, digest);
+        return digest;
+    }
+
+    //the whole file, mapped in WINDOW pieces when it is big
+    byte[] hash(FileChannel channel) throws IOException
+    {
+        MessageDigest digest = newDigest();
+        long size = channel.size();
+        if (size >= MAP_MIN) {
+            for (long position = 0; position < size; position += WINDOW) digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position)));
+            hashedBytes.add(size);
+            return digest.digest();
+        }
+        try (BufferPool.Lease lease = BufferPool.DEFAULT.acquire())
+        {
+            ByteBuffer buffer = lease.buffer;
+            long position = 0;
+            while (true)
+            {
+                FileIO.readFully(channel, buffer, position);
+                int length = buffer.remaining();
+                if (length == 0) break;
+                digest.update(buffer);
+                position += length;
+            }
+            hashedBytes.add(position);
+        }
+        return digest.digest();
+    }
+
+    //the previous pipeline stage
+    byte[] hash(InputStream in) throws IOException
+    {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[OutputSink.CHUNK_SIZE];
+        int length;
+        while ((length = in.read(buffer)) >= 0) {
+            digest.update(buffer, 0, length);
+            hashedBytes.add(length);
+        }
+        return digest.digest();
+    }
+
+    //copies source to target and hashes the source bytes on their way through, then reads the target back and compares,
+    //so the source is read once; modified (when not null) is set on the target before the two digests go to the cache
+    byte[] copyVerified(Path source, Path target, FileTime modified) throws IOException
+    {
+        BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+        MessageDigest digest = newDigest();
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            long size = in.size();
+            if (size >= MAP_MIN) {
+                for (long position = 0; position < size; position += WINDOW)
+                {
+                    ByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+                    digest.update(window.duplicate());
+                    while (window.hasRemaining()) out.write(window);
+                }
+            }
+            else {
+                try (BufferPool.Lease lease = BufferPool.DEFAULT.acquire())
+                {
+                    ByteBuffer buffer = lease.buffer;
+                    for (long position = 0; ; )
+                    {
+                        FileIO.readFully(in, buffer, position);
+                        if (!buffer.hasRemaining()) break;
+                        position += buffer.remaining();
+                        digest.update(buffer.duplicate());
+                        while (buffer.hasRemaining()) out.write(buffer);
+                    }
+                }
+            }
+            hashedBytes.add(size);
+        }
+        if (modified != null) Files.setLastModifiedTime(target, modified);
+
+        byte[] expected = digest.digest();
+        byte[] written;
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ))
+        {
+            written = hash(channel);
+        }
+        if (!MessageDigest.isEqual(expected, written)) throw new IOException("VERIFY FAILED, the copy differs from the source");
+        verified.increment();
+        remember(source, attrs, expected);
+        remember(target, Files.readAttributes(target, BasicFileAttributes.class), written);
+        return expected;
+    }
+
+    //for a copy made some other way (cp -r --blocks): the source digest may come from the cache, the target is read
+    void verify(Path source, Path target) throws IOException
+    {
+        byte[] expected = digest(source);
+        byte[] written;
+        try (FileChannel channel = FileChannel.open(target, StandardOpenOption.READ))
+        {
+            written = hash(channel);
+        }
+        if (!MessageDigest.isEqual(expected, written)) throw new IOException("VERIFY FAILED, the copy differs from the source");
+        verified.increment();
+        remember(target, Files.readAttributes(target, BasicFileAttributes.class), written);
+    }
+
+    void remember(Path file, BasicFileAttributes attrs, byte[] digest)
+    {
+        if (!useCache) return;
+        String key = file.toString();
+        cache.put(key, new Cached(attrs.size(), attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS), String.valueOf(attrs.fileKey()), digest));
+        used.put(key, Boolean.TRUE);
+        changed = true;
+    }
+
+    private void loadCache()
+    {
+        if (!Files.exists(CACHE_FILE)) return;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(CACHE_FILE))))
+        {
+            if (in.readInt() != CACHE_MAGIC) return;
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                String inode = in.readUTF();
+                byte[] digest = new byte[in.readUnsignedByte()];
+                in.readFully(digest);
+                cache.put(path, new Cached(size, mtime, inode, digest));
+            }
+        }
+        catch (IOException e) {
+            cache.clear(); //a broken cache is the same as none
+        }
+    }
+
+    //past CACHE_LIMIT the entries this command didn't use are dropped first
+    void saveCache() throws IOException
+    {
+        if (!useCache || !changed) return;
+        Iterator<String> paths = cache.keySet().iterator();
+        while (cache.size() > CACHE_LIMIT && paths.hasNext()) if (!used.containsKey(paths.next())) paths.remove();
+
+        //a temp file of its own, so a sum and a cp --verify running at once never write into the same file
+        Path temp = Files.createTempFile(CACHE_FILE.toAbsolutePath().getParent(), CACHE_FILE.getFileName() + ".", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))
+            {
+                out.writeInt(CACHE_MAGIC);
+                out.writeInt(cache.size());
+                for (Map.Entry<String, Cached> entry : cache.entrySet())
+                {
+                    Cached known = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(known.size);
+                    out.writeLong(known.mtime);
+                    out.writeUTF(known.inode);
+                    out.writeByte(known.digest.length);
+                    out.write(known.digest);
+                }
+            }
+            Files.move(temp, CACHE_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE); //a crash never leaves half a cache
+        }
+        finally {
+            Files.deleteIfExists(temp); //only still there when writing or moving failed
+        }
+        changed = false;
+    }
+}
+
+//head and tail: head stops reading at the last line it prints, tail finds where the last lines start by reading
+//blocks backwards from the end (tail -n 100 of a huge log reads a few KB), and tail -f reads only what gets appended
+class HeadTail
+{
+    static final int BLOCK = 64 * 1024;
+    static final long FOLLOW_POLL_SECONDS = 1; //tail -f also looks without an event, for file systems that send none
+
+    //the first lines of the stream, the rest is never read
+    static void head(InputStream in, long lines, OutputSink out) throws IOException
+    {
+        if (lines <= 0) return;
+        byte[] buffer = new byte[BLOCK];
+        long seen = 0;
+        int length;
+        while ((length = in.read(buffer)) >= 0)
+        {
+            for (int i = 0; i < length; i++)
+            {
+                if (buffer[i] == '\n' && ++seen == lines) {
+                    out.write(buffer, 0, i + 1);
+                    return;
+                }
+            }
+            out.write(buffer, 0, length);
+        }
+    }
+
+    //offset of the first of the last lines, the newline that ends the file doesn't start another line
+    static long startOfLastLines(FileChannel channel, long size, long lines) throws IOException
+    {
+        if (lines <= 0) return size;
+        byte[] block = new byte[BLOCK];
+        ByteBuffer wrapped = ByteBuffer.wrap(block);
+        long seen = 0;
+        for (long end = size; end > 0; )
+        {
+            int length = (int) Math.min(BLOCK, end);
+            long start = end - length;
+            wrapped.clear().limit(length);
+            while (wrapped.hasRemaining() && channel.read(wrapped, start + wrapped.position()) > 0) {
+            }
+            for (int i = wrapped.position() - 1; i >= 0; i--)
+            {
+                if (block[i] != '\n' || start + i == size - 1) continue;
+                if (++seen == lines) return start + i + 1;
+            }
+            end = start;
+        }
+        return 0;
+    }
+
+    //the last lines of a stream (a pipeline stage) can only be found by reading it all, only those lines are kept
+    static void tail(InputStream in, long lines, OutputSink out) throws IOException
+    {
+        if (lines <= 0) return;
+        ArrayDeque<byte[]> last = new ArrayDeque<>();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        byte[] buffer = new byte[BLOCK];
+        int length;
+        while ((length = in.read(buffer)) >= 0)
+        {
+            int start = 0;
+            for (int i = 0; i < length; i++)
+            {
+                if (buffer[i] != '\n') continue;
+                line.write(buffer, start, i + 1 - start);
+                last.addLast(line.toByteArray());
+                if (last.size() > lines) last.removeFirst();
+                line.reset();
+                start = i + 1;
+            }
+            line.write(buffer, start, length - start);
+        }
+        if (line.size() > 0) {
+            last.addLast(line.toByteArray()); //no newline at the end
+            if (last.size() > lines) last.removeFirst();
+        }
+        for (byte[] bytes : last) out.write(bytes, 0, bytes.length);
+    }
+
+    //tail -f: prints what gets appended after position, woken by the WatchService of the directory; a file that got
+    //shorter was truncated and is printed again from the start, one that is gone (rotated) is waited for
+    //runs until the thread is interrupted (kill of the job), so it is meant for "tail -f app.log &"
+    static void follow(Path file, long position, OutputSink out) throws IOException
+    {
+        out.flush();
+        try (WatchService watcher = file.getFileSystem().newWatchService())
+        {
+            file.toAbsolutePath().getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            while (!Thread.currentThread().isInterrupted())
+            {
+                WatchKey key;
+                try {
+                    key = watcher.poll(FOLLOW_POLL_SECONDS, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (key != null) {
+                    key.pollEvents(); //which file changed doesn't matter, one size check covers them all
+                    key.reset();
+                }
+
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+                {
+                    long size = channel.size();
+                    if (size < position) position = 0;
+                    if (size == position) continue;
+                    out.transferFrom(channel, position, size - position);
+                    out.flush();
+                    position = size;
+                }
+                catch (NoSuchFileException e) {
+                    position = 0; //the new file starts from the beginning once it shows up
+                }
+            }
+        }
+    }
+}
+
+//sort for inputs bigger than the heap: lines are read into chunks of a memory budget, every full chunk is sorted and
+//written to a run file by a pool (so the run phase uses every core while the reader goes on), and the runs are merged
+//MERGE_WIDTH at a time through buffered channels until one merge can write the output. An input that fits in one chunk
+//never touches the disk. Lines are compared as bytes (like LC_ALL=C sort), equal keys fall back to the whole line.
+//The budget is a quarter of the heap unless -S or -Dcli.sortMemory sets it, the runs go to java.io.tmpdir.
+class ExternalSort
+{
+    static final int WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors());
+    static final long DEFAULT_MEMORY = Long.getLong("cli.sortMemory", Runtime.getRuntime().maxMemory() / 4);
+    static final int MERGE_WIDTH = 64; //runs open at once, a bigger input is merged in more passes
+    static final int LINE_OVERHEAD = 40; //array header and references per line, for the budget
+    static final int RUN_BUFFER = 256 * 1024;
+
+    //splits a stream into lines without their \n, the last line may have none
+    static class Lines
+    {
+        private final InputStream in;
+        private final byte[] buffer;
+        private final ByteBuffer wrapped;
+        private int position;
+        private int limit;
+
+        Lines(InputStream in, int bufferSize)
+        {
+            this.in = in;
+            buffer = new byte[bufferSize];
+            wrapped = ByteBuffer.wrap(buffer);
+        }
+
+        //null at the end of the stream
+        byte[] next() throws IOException
+        {
+            ByteArrayOutputStream carry = null; //a line that goes on past the buffer
+            while (true)
+            {
+                int end = Grep.indexOf(wrapped, (byte) '\n', position, limit);
+                if (end >= 0) {
+                    byte[] line;
+                    if (carry == null) line = Arrays.copyOfRange(buffer, position, end);
+                    else {
+                        carry.write(buffer, position, end - position);
+                        line = carry.toByteArray();
+                    }
+                    position = end + 1;
+                    return line;
+                }
+                if (position < limit) {
+                    if (carry == null) carry = new ByteArrayOutputStream();
+                    carry.write(buffer, position, limit - position);
+                }
+                position = limit = 0;
+                int read = in.read(buffer);
+                if (read < 0) return carry == null ? null : carry.toByteArray();
+                limit = read;
+            }
+        }
+    }
+
+    //one run file being merged, ordered by its current line (then by run number, so equal lines keep the input order)
+    private static class Run
+    {
+        final int number;
+        final Lines lines;
+        final InputStream in;
+        byte[] line;
+
+        Run(int number, Path file, int bufferSize) throws IOException
+        {
+            this.number = number;
+            in = Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ));
+            lines = new Lines(in, bufferSize);
+            line = lines.next();
+        }
+    }
+
+    final boolean numeric;
+    final boolean reverse;
+    final boolean unique; //only the first line of every group of equal keys
+    final int keyField; //1 based, 0 is the whole line
+    final int keyEndField; //last field of the key, 0 is the end of the line
+    final long memory;
+    final LongAdder spilledRuns = new LongAdder();
+
+    private final ExecutorService pool;
+    private Path tempDir;
+    private final AtomicInteger runNumber = new AtomicInteger();
+
+    ExternalSort(boolean numeric, boolean reverse, boolean unique, int keyField, int keyEndField, long memory)
+    {
+        this.numeric = numeric;
+        this.reverse = reverse;
+        this.unique = unique;
+        this.keyField = keyField;
+        this.keyEndField = keyEndField;
+        this.memory = memory;
+        pool = Executors.newFixedThreadPool(WORKERS, runnable -> {
+            Thread thread = new Thread(runnable, "sort-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //sorts all inputs together into out, the temp files are gone when it returns
+    void sort(List<InputStream> inputs, OutputSink out) throws IOException
+    {
+        long chunkBytes = Math.max(1024 * 1024, memory / (WORKERS + 1)); //WORKERS chunks are sorted while one fills
+        ArrayDeque<Future<Path>> sorting = new ArrayDeque<>();
+        ArrayList<Path> runs = new ArrayList<>();
+        try {
+            ArrayList<byte[]> chunk = new ArrayList<>();
+            long bytes = 0;
+            for (InputStream in : inputs)
+            {
+                Lines lines = new Lines(in, OutputSink.CHUNK_SIZE);
+                byte[] line;
+                while ((line = lines.next()) != null)
+                {
+                    chunk.add(line);
+                    bytes += line.length + LINE_OVERHEAD;
+                    if (bytes < chunkBytes) continue;
+                    if (sorting.size() == WORKERS) runs.add(await(sorting.poll())); //keeps the memory at WORKERS + 1 chunks
+                    byte[][] full = chunk.toArray(new byte[0][]);
+                    sorting.add(pool.submit(() -> writeRun(full)));
+                    chunk = new ArrayList<>();
+                    bytes = 0;
+                }
+            }
+            if (sorting.isEmpty() && runs.isEmpty()) {
+                //everything fit in one chunk
+                byte[][] lines = chunk.toArray(new byte[0][]);
+                Arrays.parallelSort(lines, this::compare);
+                write(Arrays.asList(lines).iterator(), out);
+                return;
+            }
+            if (!chunk.isEmpty()) {
+                byte[][] last = chunk.toArray(new byte[0][]);
+                chunk = null;
+                sorting.add(pool.submit(() -> writeRun(last)));
+            }
+            while (!sorting.isEmpty()) runs.add(await(sorting.poll()));
+
+            //merges of MERGE_WIDTH runs (in parallel) until one merge is left, that one writes the output
+            while (runs.size() > MERGE_WIDTH)
+            {
+                ArrayList<Future<Path>> merging = new ArrayList<>();
+                for (int i = 0; i < runs.size(); i += MERGE_WIDTH)
+                {
+                    List<Path> group = new ArrayList<>(runs.subList(i, Math.min(runs.size(), i + MERGE_WIDTH)));
+                    merging.add(pool.submit(() -> mergeToRun(group)));
+                }
+                runs.clear();
+                for (Future<Path> merged : merging) runs.add(await(merged));
+            }
+            merge(runs, out);
+        }
+        finally {
+            pool.shutdownNow();
+            deleteRuns();
+        }
+    }
+
+    //after a failure the workers may still be writing, they are given a moment to notice the interrupt
+    private void deleteRuns()
+    {
+        try {
+            pool.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (tempDir == null) return;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(tempDir))
+        {
+            for (Path file : files) Files.deleteIfExists(file);
+            Files.deleteIfExists(tempDir);
+        }
+        catch (IOException e) {
+            //left to the OS tmp cleanup, the sort itself already succeeded or reported its own error
+        }
+    }
+
+    private Path await(Future<Path> run) throws IOException
+    {
+        try {
+            return run.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("sort interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private synchronized Path newRunFile() throws IOException
+    {
+        if (tempDir == null) tempDir = Files.createTempDirectory("cli-sort");
+        spilledRuns.increment();
+        return tempDir.resolve("run-" + runNumber.incrementAndGet());
+    }
+
+    private Path writeRun(byte[][] lines) throws IOException
+    {
+        Arrays.sort(lines, this::compare); //one chunk per worker already keeps the cores busy
+        Path file = newRunFile();
+        try (OutputSink run = OutputSink.toStream(Channels.newOutputStream(FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))))
+        {
+            write(Arrays.asList(lines).iterator(), run);
+        }
+        return file;
+    }
+
+    private Path mergeToRun(List<Path> runs) throws IOException
+    {
+        Path file = newRunFile();
+        try (OutputSink run = OutputSink.toStream(Channels.newOutputStream(FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))))
+        {
+            merge(runs, run);
+        }
+        for (Path merged : runs) Files.delete(merged);
+        return file;
+    }
+
+    private void merge(List<Path> files, OutputSink out) throws IOException
+    {
+        int bufferSize = (int) Math.max(16 * 1024, Math.min(RUN_BUFFER, memory / 2 / Math.max(1, files.size())));
+        PriorityQueue<Run> heads = new PriorityQueue<>((a, b) -> {
+            int order = compare(a.line, b.line);
+            return order != 0 ? order : Integer.compare(a.number, b.number);
+        });
+        ArrayList<Run> open = new ArrayList<>();
+        try {
+            for (Path file : files)
+            {
+                Run run = new Run(open.size(), file, bufferSize);
+                open.add(run);
+                if (run.line != null) heads.add(run);
+            }
+            write(new Iterator<byte[]>() {
+                @Override
+                public boolean hasNext()
+                {
+                    return !heads.isEmpty();
+                }
+
+                @Override
+                public byte[] next()
+                {
+                    Run run = heads.poll();
+                    byte[] line = run.line;
+                    try {
+                        run.line = run.lines.next();
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    if (run.line != null) heads.add(run);
+                    return line;
+                }
+            }, out);
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            for (Run run : open) run.in.close();
+        }
+    }
+
+    //writes the lines with a \n each, dropping the ones whose key equals the previous one with -u
+    private void write(Iterator<byte[]> lines, OutputSink out) throws IOException
+    {
+        byte[] previous = null;
+        byte[] newline = {'\n'};
+        while (lines.hasNext())
+        {
+            byte[] line = lines.next();
+            if (unique && previous != null && compareKeys(previous, line) == 0) continue;
+            out.write(line, 0, line.length);
+            out.write(newline, 0, 1);
+            previous = line;
+        }
+    }
+
+    int compare(byte[] a, byte[] b)
+    {
+        int order = compareKeys(a, b);
+        if (order == 0 && !unique) order = Arrays.compareUnsigned(a, b); //last resort, like sort without -s
+        return reverse ? -order : order;
+    }
+
+    int compareKeys(byte[] a, byte[] b)
+    {
+        int aStart = keyStart(a), bStart = keyStart(b);
+        if (numeric) return Double.compare(number(a, aStart), number(b, bStart));
+        return Arrays.compareUnsigned(a, aStart, keyEnd(a, aStart), b, bStart, keyEnd(b, bStart));
+    }
+
+    //fields are separated by runs of blanks, the blanks before a field are not part of it
+    private int keyStart(byte[] line)
+    {
+        if (keyField <= 1) return keyField == 0 ? 0 : skipBlanks(line, 0);
+        int i = skipBlanks(line, 0);
+        for (int field = 1; field < keyField; field++) i = skipBlanks(line, skipField(line, i));
+        return i;
+    }
+
+    private int keyEnd(byte[] line, int start)
+    {
+        if (keyEndField == 0) return line.length;
+        int i = start;
+        for (int field = Math.max(1, keyField); field <= keyEndField && i < line.length; field++) i = skipField(line, skipBlanks(line, i));
+        return i;
+    }
+
+    private static int skipBlanks(byte[] line, int i)
+    {
+        while (i < line.length && (line[i] == ' ' || line[i] == '\t')) i++;
+        return i;
+    }
+
+    private static int skipField(byte[] line, int i)
+    {
+        while (i < line.length && line[i] != ' ' && line[i] != '\t') i++;
+        return i;
+    }
+
+    //the number at the start of the key like sort -n: blanks, a sign, digits and a fraction, anything else counts as 0
+    static double number(byte[] line, int i)
+    {
+        i = skipBlanks(line, i);
+        boolean negative = i < line.length && line[i] == '-';
+        if (negative) i++;
+        double value = 0;
+        for (; i < line.length && line[i] >= '0' && line[i] <= '9'; i++) value = value * 10 + (line[i] - '0');
+        if (i < line.length && line[i] == '.') {
+            double scale = 0.1;
+            for (i++; i < line.length && line[i] >= '0' && line[i] <= '9'; i++, scale /= 10) value += (line[i] - '0') * scale;
+        }
+        return negative && value != 0 ? -value : value; //-0 sorts with 0
+    }
+}
+
+//per command counters and latency histograms behind stats, one entry per command name (or "cat | wc" for a pipeline)
+class CommandStats
+{
+    //log-linear buckets like HdrHistogram: below 32 ns every value has its own bucket, above that each power of two
+    //is split in 16 steps, so a percentile is never more than 1/16 above the real value
+    static class Histogram
+    {
+        private static final int SUB_BITS = 4, SUB_COUNT = 1 << SUB_BITS, LINEAR = 2 * SUB_COUNT;
+        private final long[] counts = new long[LINEAR + (63 - SUB_BITS) * SUB_COUNT];
+        long count;
+        long max;
+
+        void record(long value)
+        {
+            counts[index(Math.max(0, value))]++;
+            count++;
+            max = Math.max(max, value);
+        }
+
+        static int index(long value)
+        {
+            if (value < LINEAR) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+            return LINEAR + (exponent - SUB_BITS - 1) * SUB_COUNT + sub;
+        }
+
+        //largest value that lands in the bucket
+        static long highest(int index)
+        {
+            if (index < LINEAR) return index;
+            int exponent = (index - LINEAR) / SUB_COUNT + SUB_BITS + 1;
+            int sub = (index - LINEAR) % SUB_COUNT;
+            long step = 1L << (exponent - SUB_BITS);
+            return (SUB_COUNT + sub) * step + step - 1;
+        }
+
+        //value at the percentile (0..100), at most the recorded max
+        long percentile(double percentile)
+        {
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++)
+            {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(highest(i), max);
+            }
+            return max;
+        }
+    }
+
+    static class Counter
+    {
+        final Histogram latency = new Histogram();
+        long failed;
+        long total;
+    }
+
+    private final TreeMap<String, Counter> counters = new TreeMap<>();
+
+    //called by the foreground line and the background jobs, so it takes the lock
+    synchronized void record(String name, long nanos, boolean failed)
+    {
+        Counter counter = counters.computeIfAbsent(name, key -> new Counter());
+        counter.latency.record(nanos);
+        counter.total += nanos;
+        if (failed) counter.failed++;
+    }
+
+    synchronized void clear()
+    {
+        counters.clear();
+    }
+
+    //one row per command, the times are latencies of the whole command (pipeline)
+    synchronized List<String> table()
+    {
+        ArrayList<String> rows = new ArrayList<>();
+        rows.add(String.format("%-16s %7s %6s %9s %9s %9s %9s %9s %10s", "command", "count", "failed", "p50", "p90", "p99", "p99.9", "max", "total"));
+        for (Map.Entry<String, Counter> entry : counters.entrySet())
+        {
+            Counter counter = entry.getValue();
+            Histogram latency = counter.latency;
+            rows.add(String.format("%-16s %7d %6d %9s %9s %9s %9s %9s %10s", entry.getKey(), latency.count, counter.failed,
+                    duration(latency.percentile(50)), duration(latency.percentile(90)), duration(latency.percentile(99)),
+                    duration(latency.percentile(99.9)), duration(latency.max), duration(counter.total)));
+        }
+        return rows;
+    }
+
+    static String duration(long nanos)
+    {
+        if (nanos < 1_000_000) return String.format("%.1fus", nanos / 1e3);
+        if (nanos < 1_000_000_000) return String.format("%.2fms", nanos / 1e6);
+        return String.format("%.3fs", nanos / 1e9);
+    }
+}
+
+//JFR event of every command when the session runs with -Dcli.jfr=true (loading jdk.jfr adds ~250 ms to the start):
+//java -Dcli.jfr=true -XX:StartFlightRecording=filename=cli.jfr Main, then jfr print --events cli.Command cli.jfr
+@Name("cli.Command")
+@Label("CLI Command")
+@Category("CLI")
+@Description("One command (pipeline) of a command line")
+class CommandEvent extends Event
+{
+    @Label("Command")
+    String command;
+
+    @Label("Directory")
+    String directory;
+
+    @Label("Failed")
+    boolean failed;
+
+    @Label("Background")
+    boolean background;
+}
+
+//what the process and the calling thread have used so far, time takes one before and one after the command
+class ResourceUsage
+{
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final java.lang.management.OperatingSystemMXBean SYSTEM = ManagementFactory.getOperatingSystemMXBean();
+    private static final Path PROC_IO = Paths.get("/proc/self/io"); //Linux only, read/written are left out elsewhere
+
+    long processCpu = -1; //user + sys of every thread
+    long threadCpu = -1;
+    long allocated = -1; //by the live threads, a thread that exits before the second reading takes its bytes along
+    long read = -1;
+    long written = -1;
+
+    static ResourceUsage now()
+    {
+        ResourceUsage usage = new ResourceUsage();
+        if (SYSTEM instanceof com.sun.management.OperatingSystemMXBean) usage.processCpu = ((com.sun.management.OperatingSystemMXBean) SYSTEM).getProcessCpuTime();
+        if (THREADS.isCurrentThreadCpuTimeSupported()) usage.threadCpu = THREADS.getCurrentThreadCpuTime();
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                usage.allocated = 0;
+                for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) usage.allocated += Math.max(0, bytes);
+            }
+        }
+        try {
+            for (String line : Files.readAllLines(PROC_IO))
+            {
+                //rchar / wchar count every read and write call, page cache hits included
+                if (line.startsWith("rchar:")) usage.read = Long.parseLong(line.substring(6).trim());
+                else if (line.startsWith("wchar:")) usage.written = Long.parseLong(line.substring(6).trim());
+            }
+        }
+        catch (IOException | NumberFormatException e) {
+            //no /proc, the I/O rows are skipped
+        }
+        return usage;
+    }
+
+    //the report of time, like the one of bash with the extra counters
+    List<String> since(ResourceUsage before, long wall)
+    {
+        ArrayList<String> rows = new ArrayList<>();
+        rows.add(String.format("real      %10.3f s", wall / 1e9));
+        if (processCpu >= 0) rows.add(String.format("cpu       %10.3f s  (process, user+sys)", (processCpu - before.processCpu) / 1e9));
+        if (threadCpu >= 0) rows.add(String.format("thread    %10.3f s  (this thread)", (threadCpu - before.threadCpu) / 1e9));
+        if (read >= 0) rows.add(String.format("read      %10.1f MB", (read - before.read) / 1048576.0));
+        if (written >= 0) rows.add(String.format("written   %10.1f MB", (written - before.written) / 1048576.0));
+        if (allocated >= 0) rows.add(String.format("allocated %10.1f MB", (allocated - before.allocated) / 1048576.0));
+        return rows;
+    }
+}
+
+//background jobs of one terminal: "cmd &" runs the command list on its own thread (a virtual one when the runtime has them)
+//with a copy of the terminal, so the parser, the current directory and the failed flag are not shared with the lines typed meanwhile
+//the output goes to a temp file (or the > / >> target) and reaches the terminal through fg, wait or the Done notice
+class Jobs
+{
+    static class Job
+    {
+        final int id;
+        final String text;
+        final Terminal shell;
+        final Path output;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        volatile Thread thread;
+        long shown; //bytes of the output already copied to the terminal
+
+        Job(int id, String text, Terminal shell, Path output)
+        {
+            this.id = id;
+            this.text = text;
+            this.shell = shell;
+            this.output = output;
+        }
+
+        String state()
+        {
+            if (!done.isDone()) return shell.killed ? "Killing" : "Running";
+            if (shell.killed) return "Killed";
+            return shell.failed ? "Exit 1" : "Done";
+        }
+
+        boolean failed()
+        {
+            return shell.killed || shell.failed;
+        }
+
+        //the thread is interrupted (blocking channel I/O stops right away) and the next write or command of the job fails
+        void kill()
+        {
+            shell.killed = true;
+            Thread running = thread;
+            if (running != null) running.interrupt();
+        }
+
+        //copies what the job wrote since the last call
+        void drain(OutputSink out) throws IOException
+        {
+            try (FileChannel channel = FileChannel.open(output, StandardOpenOption.READ))
+            {
+                if (channel.size() <= shown) return;
+                channel.position(shown);
+                out.writeAll(Channels.newInputStream(channel));
+                shown = channel.position();
+            }
+            out.flush();
+        }
+    }
+
+    private final TreeMap<Integer, Job> jobs = new TreeMap<>();
+    private int lastId; //ids keep counting up, an id is never given to a second job of the session
+
+    //starts the && chain as a job, the commands come from the parsed line so the job never touches the parser
+    Job start(Terminal parent, CommandCache.Entry entry, List<Parser.Command> commands) throws IOException
+    {
+        int id;
+        synchronized (this) {
+            id = ++lastId;
+        }
+        Path output = Files.createTempFile("cli-job-" + id + "-", ".out");
+        output.toFile().deleteOnExit(); //jobs still running at exit
+        OutputStream file = new FileOutputStream(output.toFile());
+        Terminal[] shell = new Terminal[1];
+        OutputStream guarded = new FilterOutputStream(file) {
+            @Override
+            public void write(int b) throws IOException
+            {
+                if (shell[0].killed) throw new InterruptedIOException("Killed");
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException
+            {
+                if (shell[0].killed) throw new InterruptedIOException("Killed"); //a killed job stops at its next write
+                out.write(bytes, offset, length);
+            }
+        };
+        shell[0] = parent.fork(entry, guarded);
+        Job job = new Job(id, describe(commands), shell[0], output);
+        synchronized (this) {
+            jobs.put(id, job);
+        }
+
+        Pipeline.STAGE_EXECUTOR.submit(() -> {
+            job.thread = Thread.currentThread();
+            Terminal terminal = job.shell;
+            try {
+                for (Parser.Command command : commands)
+                {
+                    if (terminal.killed) break;
+                    if (command.connector == Parser.Connector.IfSucceeded && terminal.failed) continue;
+                    terminal.failed = false;
+                    terminal.run(command);
+                }
+            }
+            catch (Exception e) {
+                terminal.failed = true;
+                if (!terminal.killed) terminal.console().println("Error during command: " + job.text + " (" + e + ")");
+            }
+            finally {
+                terminal.console().close();
+                job.thread = null;
+                job.done.complete(null);
+            }
+        });
+        return job;
+    }
+
+    //%n or n, or the newest job when arg is null
+    synchronized Job find(String arg)
+    {
+        if (arg == null) return jobs.isEmpty() ? null : jobs.lastEntry().getValue();
+        try {
+            return jobs.get(Integer.parseInt(arg.startsWith("%") ? arg.substring(1) : arg));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    synchronized List<Job> list()
+    {
+        return new ArrayList<>(jobs.values());
+    }
+
+    //takes the job out of the table and deletes its output, after its output was shown
+    void remove(Job job) throws IOException
+    {
+        synchronized (this) {
+            jobs.remove(job.id);
+        }
+        Files.deleteIfExists(job.output);
+    }
+
+    synchronized List<Job> finished()
+    {
+        ArrayList<Job> finished = new ArrayList<>();
+        for (Job job : jobs.values()) if (job.done.isDone()) finished.add(job);
+        return finished;
+    }
+
+    //the command line of the job, rebuilt from the tree (quotes are not kept)
+    static String describe(List<Parser.Command> commands)
+    {
+        StringBuilder text = new StringBuilder();
+        for (Parser.Command command : commands)
+        {
+            if (text.length() > 0) text.append(" && ");
+            for (int i = 0; i < command.stages.size(); i++)
+            {
+                Parser.Stage stage = command.stages.get(i);
+                if (i > 0) text.append(" | ");
+                text.append(stage.commandName);
+                for (String arg : stage.args) text.append(' ').append(arg);
+            }
+            if (command.writeType != Parser.WriteType.NoWrite) text.append(command.writeType == Parser.WriteType.Overwrite ? " > " : " >> ").append(command.filePath);
+        }
+        return text.toString();
+    }
+}
+
+class Terminal
+{
+    static final int HISTORY_SIZE = Integer.getInteger("cli.historySize", 1000);
+    static final boolean JFR_EVENTS = Boolean.getBoolean("cli.jfr"); //CommandEvent is only loaded when this is set
+
+    Parser parser = new Parser();
+    CommandCache commandCache;
+    ArrayDeque<String> history = new ArrayDeque<>();
+    long historyCount; //number of the newest history entry, the oldest ones drop off the front past HISTORY_SIZE
+    CommandCache.Entry running; //the line being run, normalizePath reuses the paths it resolved before
+    String currentPath = System.getProperty("user.dir");
+    volatile boolean failed; //set when the last command line reported an error, used by set -e in batch mode
+    final Jobs jobs = new Jobs();
+    CommandStats stats;
+    PrintStream console; //where the messages go, null for System.out (it is swapped in batch mode)
+    OutputStream output; //same target as console for the command output, null for the real terminal
+    volatile boolean killed; //kill was used on the job this terminal runs
+
+    Terminal()
+    {
+        commandCache = new CommandCache(CommandCache.DEFAULT_CAPACITY);
+        stats = new CommandStats();
+    }
+
+    //the copy a background job runs in: its own parser, directory and status, the (synchronized) command cache is shared
+    private Terminal(Terminal parent, CommandCache.Entry entry, OutputStream output)
+    {
+        commandCache = parent.commandCache;
+        stats = parent.stats; //the jobs count in the stats of the session
+        currentPath = parent.currentPath;
+        running = entry;
+        this.output = output;
+        console = new PrintStream(output, true, StandardCharsets.UTF_8);
+    }
+
+    Terminal fork(CommandCache.Entry entry, OutputStream output)
+    {
+        return new Terminal(this, entry, output);
+    }
+
+    PrintStream console()
+    {
+        return console != null ? console : System.out;
+    }
+
+    public String pwd()
+    {
+        return currentPath;
+    }
+
+    public void cd(String[] args)
+    {
+        // Home condition
+        if (args.length == 0) {
+            currentPath = System.getProperty("user.home");
+        }
+        else
+        {
+            if (args[0].equals(".."))
+            {
+                Path parent = Paths.get(currentPath).getParent();
+                if (parent != null) currentPath = parent.toString();
+            }
+            else
+            {
+                String absolutePath = normalizePath(args[0]);
+                if (new File(absolutePath).exists())
+                {
+                    currentPath = Paths.get(absolutePath).normalize().toString(); //"cd ." or "a/../b" don't pile up in the path
+
+                }
+                else {
+                    error("Error: INVALID PATH");
+                }
+            }
+        }
+    }
+
+    //ls [-l] [-a] [-R] [-h] [-U] [path]..., sorted by name, the options can be combined like -laR
+    public void ls(String[] args, OutputSink out) throws IOException
+    {
+        DirectoryLister lister = new DirectoryLister(out, console());
+        ArrayList<Path> paths = new ArrayList<>();
+        ArrayList<String> shown = new ArrayList<>();
+        for (String arg : args)
+        {
+            if (arg.length() > 1 && arg.startsWith("-")) {
+                for (int i = 1; i < arg.length(); i++)
+                {
+                    switch (arg.charAt(i))
+                    {
+                        case 'l': lister.longFormat = true; break;
+                        case 'a': lister.all = true; break;
+                        case 'R': lister.recursive = true; break;
+                        case 'h': lister.human = true; break;
+                        case 'U': lister.sorted = false; break;
+                        default:
+                            error(out, "Error: UNKNOWN OPTION -" + arg.charAt(i));
+                            return;
+                    }
+                }
+            }
+            else {
+                paths.add(Paths.get(normalizePath(arg)));
+                shown.add(arg);
+            }
+        }
+        if (paths.isEmpty()) {
+            paths.add(Paths.get(currentPath));
+            shown.add(".");
+        }
+
+        lister.run(paths, shown);
+        if (lister.failed) failed = true;
+    }
+
+    //du [-s] [-h] [--max-depth=N] [--cache] [path]...
+    public void du(String[] args, OutputSink out) throws IOException
+    {
+        boolean human = false;
+        boolean useCache = false;
+        int maxDepth = Integer.MAX_VALUE;
+        ArrayList<Path> paths = new ArrayList<>();
+        ArrayList<String> shown = new ArrayList<>();
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            try {
+                if (arg.startsWith("--max-depth=")) maxDepth = Integer.parseInt(arg.substring("--max-depth=".length()));
+                else if (arg.equals("--max-depth") || arg.equals("-d")) maxDepth = Integer.parseInt(args[++i]);
+                else if (arg.equals("--cache")) useCache = true;
+                else if (arg.length() > 1 && arg.startsWith("-") && arg.chars().skip(1).allMatch(c -> c == 's' || c == 'h')) {
+                    if (arg.indexOf('s') > 0) maxDepth = 0;
+                    if (arg.indexOf('h') > 0) human = true;
+                }
+                else if (arg.startsWith("-")) {
+                    error(out, "Error: UNKNOWN OPTION " + arg);
+                    return;
+                }
+                else {
+                    paths.add(Paths.get(normalizePath(arg)).normalize());
+                    shown.add(arg);
+                }
+            }
+            catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                error(out, "Error: --max-depth NEEDS A NUMBER");
+                return;
+            }
+        }
+        if (paths.isEmpty()) {
+            paths.add(Paths.get(currentPath));
+            shown.add(".");
+        }
+
+        DiskUsage usage = new DiskUsage(maxDepth, useCache);
+        ForkJoinPool pool = new ForkJoinPool(DiskUsage.WORKERS);
+        try {
+            for (int i = 0; i < paths.size(); i++)
+            {
+                Path path = paths.get(i);
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                }
+                catch (IOException e) {
+                    error(out, "Error: " + shown.get(i) + " NOT FOUND");
+                    continue;
+                }
+                if (!attrs.isDirectory()) {
+                    out.println((human ? DirectoryLister.humanSize(attrs.size()) : Long.toString(attrs.size())) + "\t" + shown.get(i));
+                    continue;
+                }
+                DiskUsage.print(usage.scan(path, shown.get(i), pool), human, out);
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+        usage.saveCache(paths);
+
+        int printed = 0;
+        for (String problem : usage.errors)
+        {
+            if (printed++ == DiskUsage.PRINTED_ERRORS) {
+                report(out, "... and " + (usage.errors.size() - DiskUsage.PRINTED_ERRORS) + " more errors");
+                break;
+            }
+            report(out, "Error: " + problem);
+        }
+        if (!usage.errors.isEmpty()) failed = true;
+    }
+
+    //find [path]... [-name glob] [-type f|d|l] [-size [+|-]n[c|k|M|G]] [-mtime [+|-]n], every test has to pass
+    //-size without a unit counts 512 byte blocks and rounds up, -mtime counts whole days, + is more and - is less
+    public void find(String[] args, OutputSink out) throws IOException
+    {
+        ArrayList<Path> paths = new ArrayList<>();
+        ArrayList<String> shown = new ArrayList<>();
+        int i = 0;
+        for (; i < args.length && !args[i].startsWith("-"); i++)
+        {
+            paths.add(Paths.get(normalizePath(args[i])).normalize());
+            shown.add(args[i]);
+        }
+        if (paths.isEmpty()) {
+            paths.add(Paths.get(currentPath));
+            shown.add(".");
+        }
+
+        Pattern name = null;
+        char type = 0;
+        long[] size = null;  //{sign, count, unit}
+        long[] mtime = null; //{sign, days}
+        for (; i < args.length; i += 2)
+        {
+            if (i + 1 == args.length) {
+                error(out, "Error: " + args[i] + " NEEDS A VALUE");
+                return;
+            }
+            String value = args[i + 1];
+            switch (args[i])
+            {
+                case "-name":
+                    name = Glob.toPattern(value);
+                    break;
+                case "-type":
+                    if (!value.equals("f") && !value.equals("d") && !value.equals("l")) {
+                        error(out, "Error: -type TAKES f, d OR l");
+                        return;
+                    }
+                    type = value.charAt(0);
+                    break;
+                case "-size":
+                case "-mtime":
+                    int sign = value.startsWith("+") ? 1 : value.startsWith("-") ? -1 : 0;
+                    String number = sign == 0 ? value : value.substring(1);
+                    long unit = 512;
+                    if (args[i].equals("-size") && !number.isEmpty() && !Character.isDigit(number.charAt(number.length() - 1))) {
+                        int suffix = "ckMG".indexOf(number.charAt(number.length() - 1));
+                        unit = suffix < 0 ? -1 : 1L << (10 * suffix);
+                        number = number.substring(0, number.length() - 1);
+                    }
+                    try {
+                        if (unit < 0) throw new NumberFormatException();
+                        if (args[i].equals("-size")) size = new long[] {sign, Long.parseLong(number), unit};
+                        else mtime = new long[] {sign, Long.parseLong(number)};
+                    }
+                    catch (NumberFormatException e) {
+                        error(out, "Error: INVALID " + args[i] + " VALUE " + value);
+                        return;
+                    }
+                    break;
+                default:
+                    error(out, "Error: UNKNOWN OPTION " + args[i]);
+                    return;
+            }
+        }
+
+        Pattern nameTest = name;
+        char typeTest = type;
+        long[] sizeTest = size;
+        long[] mtimeTest = mtime;
+        long now = System.currentTimeMillis();
+        boolean[] failedRead = new boolean[1];
+        try (TreeWalk walk = new TreeWalk())
+        {
+            for (int p = 0; p < paths.size(); p++)
+            {
+                Path root = paths.get(p);
+                walk.walk(root, shown.get(p), new TreeWalk.Visitor() {
+                    @Override
+                    public void visit(Path path, String shownPath, BasicFileAttributes attrs) throws IOException
+                    {
+                        if (nameTest != null) {
+                            String fileName = path.equals(root) ? Paths.get(shownPath).getFileName() + "" : path.getFileName().toString();
+                            if (!nameTest.matcher(fileName).matches()) return;
+                        }
+                        if (typeTest != 0) {
+                            char actual = attrs.isDirectory() ? 'd' : attrs.isSymbolicLink() ? 'l' : attrs.isRegularFile() ? 'f' : '?';
+                            if (actual != typeTest) return;
+                        }
+                        if (sizeTest != null && !compare((attrs.size() + sizeTest[2] - 1) / sizeTest[2], sizeTest[0], sizeTest[1])) return;
+                        if (mtimeTest != null && !compare((now - attrs.lastModifiedTime().toMillis()) / 86_400_000L, mtimeTest[0], mtimeTest[1])) return;
+                        out.println(shownPath);
+                    }
+
+                    @Override
+                    public void failed(Path path, String shownPath, IOException e) throws IOException
+                    {
+                        report(out, e instanceof NoSuchFileException ? "Error: " + shownPath + " NOT FOUND" : "Error: CANNOT READ " + shownPath);
+                        failedRead[0] = true;
+                    }
+                });
+            }
+        }
+        if (failedRead[0]) failed = true;
+    }
+
+    //sign 1 is more than, -1 less than and 0 exactly
+    static boolean compare(long value, long sign, long expected)
+    {
+        return sign > 0 ? value > expected : sign < 0 ? value < expected : value == expected;
+    }
+
+    //grep [-r] [-n] [-c] [-i] pattern [file]..., with more than one file (or -r) every line starts with its file
+    //files are searched in parallel and printed in order, without files it searches the previous pipeline stage
+    public void grep(String[] args, InputStream in, OutputSink out) throws IOException
+    {
+        boolean recursive = false;
+        boolean lineNumbers = false;
+        boolean countOnly = false;
+        boolean ignoreCase = false;
+        int i = 0;
+        for (; i < args.length && args[i].length() > 1 && args[i].startsWith("-"); i++)
+        {
+            for (int c = 1; c < args[i].length(); c++)
+            {
+                switch (args[i].charAt(c))
+                {
+                    case 'r': recursive = true; break;
+                    case 'n': lineNumbers = true; break;
+                    case 'c': countOnly = true; break;
+                    case 'i': ignoreCase = true; break;
+                    default:
+                        error(out, "Error: UNKNOWN OPTION -" + args[i].charAt(c));
+                        return;
+                }
+            }
+        }
+        if (i == args.length) {
+            error(out, "Error: grep NEEDS A PATTERN");
+            return;
+        }
+
+        Grep grep;
+        try {
+            grep = new Grep(args[i++], ignoreCase);
+        }
+        catch (PatternSyntaxException e) {
+            error(out, "Error: INVALID PATTERN " + e.getDescription());
+            return;
+        }
+        grep.lineNumbers = lineNumbers;
+        grep.countOnly = countOnly;
+
+        List<String> files = Arrays.asList(args).subList(i, args.length);
+        if (files.isEmpty() && recursive) files = Collections.singletonList(".");
+        if (files.isEmpty()) {
+            if (in == null) {
+                error(out, "Error: grep NEEDS A FILE");
+                return;
+            }
+            if (grep.searchStream(in, out.stream()) == 0) failed = true;
+            return;
+        }
+        grep.showNames = recursive || files.size() > 1;
+
+        //one file is searched straight into the sink, more go through the pool
+        if (files.size() == 1 && !recursive) {
+            Path file = Paths.get(normalizePath(files.get(0)));
+            if (Files.isDirectory(file)) error(out, "Error: " + files.get(0) + " IS A DIRECTORY");
+            else if (!Files.exists(file)) error(out, "Error: " + files.get(0) + " NOT FOUND");
+            else if (grep.searchFile(file, files.get(0), out.stream()) == 0) failed = true;
+            return;
+        }
+
+        boolean walkTree = recursive;
+        ExecutorService pool = Executors.newFixedThreadPool(Grep.WORKERS, runnable -> {
+            Thread thread = new Thread(runnable, "grep-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>(); //in the order the output has to come out
+        LongAdder matches = new LongAdder();
+        LongAdder problems = new LongAdder();
+        try (TreeWalk walk = recursive ? new TreeWalk() : null)
+        {
+            TreeWalk.Visitor search = new TreeWalk.Visitor() {
+                @Override
+                public void visit(Path path, String shownPath, BasicFileAttributes attrs) throws IOException
+                {
+                    if (attrs.isDirectory()) {
+                        if (!walkTree) failed(path, shownPath, new IOException("IS A DIRECTORY"));
+                        return;
+                    }
+                    if (!attrs.isRegularFile()) return;
+                    inFlight.add(pool.submit(() -> {
+                        ByteArrayOutputStream output = new ByteArrayOutputStream();
+                        try {
+                            matches.add(grep.searchFile(path, shownPath, output));
+                        }
+                        catch (IOException e) {
+                            problems.increment();
+                            output.write(reportLine(out, "Error: " + shownPath + ": " + e.getMessage()));
+                        }
+                        return output.toByteArray();
+                    }));
+                    while (inFlight.size() >= Grep.WORKERS * Grep.IN_FLIGHT_PER_WORKER) writeNext(inFlight, out);
+                }
+
+                @Override
+                public void failed(Path path, String shownPath, IOException e) throws IOException
+                {
+                    problems.increment();
+                    String reason = e instanceof NoSuchFileException ? "NOT FOUND" : e.getMessage();
+                    inFlight.add(CompletableFuture.completedFuture(reportLine(out, "Error: " + shownPath + " " + reason)));
+                }
+            };
+
+            for (String file : files)
+            {
+                Path path = Paths.get(normalizePath(file)).normalize();
+                if (recursive) walk.walk(path, file, search);
+                else {
+                    try {
+                        search.visit(path, file, Files.readAttributes(path, BasicFileAttributes.class));
+                    }
+                    catch (IOException e) {
+                        search.failed(path, file, e);
+                    }
+                }
+            }
+            while (!inFlight.isEmpty()) writeNext(inFlight, out);
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        if (matches.sum() == 0 || problems.sum() > 0) failed = true; //like grep's exit status
+    }
+
+    //writes the oldest result of grep or sum, waiting for it when it isn't done yet
+    private static void writeNext(ArrayDeque<Future<byte[]>> inFlight, OutputSink out) throws IOException
+    {
+        try {
+            byte[] output = inFlight.poll().get();
+            out.write(output, 0, output.length);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted", e);
+        }
+        catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    //sum / sha256sum [-r] [--no-cache] [file]... prints "digest  name" for every file like sha256sum, in order, while the
+    //files are hashed in parallel; -c manifest checks the "digest  name" lines of a manifest instead
+    //without files it hashes the previous pipeline stage
+    public void sum(String[] args, InputStream in, OutputSink out) throws IOException
+    {
+        boolean recursive = false;
+        boolean useCache = true;
+        String manifest = null;
+        ArrayList<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-r")) recursive = true;
+            else if (args[i].equals("--no-cache")) useCache = false;
+            else if (args[i].equals("-c")) {
+                if (i + 1 == args.length) {
+                    error(out, "Error: -c NEEDS A MANIFEST");
+                    return;
+                }
+                manifest = args[++i];
             }
-        }
-        else if (splits.contains(">>")) {
-            writeType = WriteType.Append;
-            int idx = splits.indexOf(">>");
-            if (idx + 1 < splits.size()) {
-                filePath = splits.get(idx+1);
-                splits = new ArrayList<>(splits.subList(0,idx));
+            else if (args[i].length() > 1 && args[i].startsWith("-")) {
+                error(out, "Error: UNKNOWN OPTION " + args[i]);
+                return;
             }
+            else files.add(args[i]);
         }
 
-        commandName = splits.get(0).toLowerCase();
-        splits.remove(0);
-        args = splits.toArray(String[]::new); //putting the rest of the array to the args array
-        return true;
-    }
-
-    public String getCommandName() {
-        return commandName;
-    }
-
-    public String[] getArgs() {
-        return args;
+        Checksums checksums = new Checksums(useCache);
+        if (manifest != null) checkManifest(manifest, checksums, out);
+        else if (!files.isEmpty()) sumFiles(files, recursive, checksums, out);
+        else if (in != null) out.println(Checksums.hex(checksums.hash(in)) + "  -");
+        else error(out, "Error: sum NEEDS A FILE");
+        saveCache(checksums, out); //not when hashing threw, its error is the one to see
     }
-}
 
-class Terminal
-{
-    public static String commandOutput;
-    Parser parser = new Parser();
-    String currentPath = System.getProperty("user.dir");
-    public String pwd()
+    //the cache only saves time, when it can't be written the hashes already printed stay valid
+    private void saveCache(Checksums checksums, OutputSink out) throws IOException
     {
-        return currentPath;
+        try {
+            checksums.saveCache();
+        }
+        catch (IOException e) {
+            error(out, "Error: CANNOT WRITE CHECKSUM CACHE (" + e.getMessage() + ")");
+        }
     }
 
-    public void cd(String[] args)
+    private void sumFiles(List<String> files, boolean recursive, Checksums checksums, OutputSink out) throws IOException
     {
-        // Home condition
-        if (args.length == 0) {
-            currentPath = System.getProperty("user.home");
-        }
-        else
+        ExecutorService pool = Checksums.newPool();
+        ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>(); //in the order the output has to come out
+        LongAdder problems = new LongAdder();
+        try (TreeWalk walk = recursive ? new TreeWalk() : null)
         {
-            if (args[0].equals(".."))
-            {
-                Path parent = Paths.get(currentPath).getParent();
-                if (parent != null) currentPath = parent.toString();
-            }
-            else
-            {
-                String absolutePath = normalizePath(args[0]);
-                if (new File(absolutePath).exists())
+            TreeWalk.Visitor hash = new TreeWalk.Visitor() {
+                @Override
+                public void visit(Path path, String shownPath, BasicFileAttributes attrs) throws IOException
+                {
+                    if (attrs.isDirectory()) {
+                        if (!recursive) failed(path, shownPath, new IOException("IS A DIRECTORY"));
+                        return;
+                    }
+                    if (!attrs.isRegularFile()) return;
+                    inFlight.add(pool.submit(() -> {
+                        try {
+                            return (Checksums.hex(checksums.digest(path)) + "  " + shownPath + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+                        }
+                        catch (IOException e) {
+                            problems.increment();
+                            return reportLine(out, "Error: " + shownPath + " " + e.getMessage());
+                        }
+                    }));
+                    while (inFlight.size() >= Checksums.WORKERS * Checksums.IN_FLIGHT_PER_WORKER) writeNext(inFlight, out);
+                }
+
+                @Override
+                public void failed(Path path, String shownPath, IOException e) throws IOException
                 {
-                    currentPath = absolutePath;
+                    problems.increment();
+                    String reason = e instanceof NoSuchFileException ? "NOT FOUND" : e.getMessage();
+                    inFlight.add(CompletableFuture.completedFuture(reportLine(out, "Error: " + shownPath + " " + reason)));
                 }
+            };
+
+            for (String file : files)
+            {
+                Path path = Paths.get(normalizePath(file)).normalize();
+                if (recursive) walk.walk(path, file, hash);
                 else {
-                    System.out.println("Error: INVALID PATH");
+                    try {
+                        hash.visit(path, file, Files.readAttributes(path, BasicFileAttributes.class));
+                    }
+                    catch (IOException e) {
+                        hash.failed(path, file, e);
+                    }
                 }
             }
+            while (!inFlight.isEmpty()) writeNext(inFlight, out);
         }
+        finally {
+            pool.shutdownNow();
+        }
+        if (problems.sum() > 0) failed = true;
     }
 
-    public String ls()
+    //every "digest  name" line (or "digest *name") is checked against the file, names are relative to the current directory
+    private void checkManifest(String manifest, Checksums checksums, OutputSink out) throws IOException
     {
-        File[] directories = new File(currentPath).listFiles();
-        String res = "";
-        for (int i = 0; i < directories.length; i++)
-        {
-            String relative = directories[i].toString().replace(currentPath, ""); //removing the parent path part
-            System.out.println(relative);
-            res += relative + "\r\n";
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(normalizePath(manifest)), StandardCharsets.UTF_8);
+        }
+        catch (IOException e) {
+            error(out, "Error: " + manifest + " NOT FOUND");
+            return;
+        }
+
+        Pattern entry = Pattern.compile("([0-9a-fA-F]{64}) [ *](.+)");
+        ExecutorService pool = Checksums.newPool();
+        ArrayDeque<Future<byte[]>> inFlight = new ArrayDeque<>();
+        LongAdder mismatches = new LongAdder();
+        LongAdder unreadable = new LongAdder();
+        int malformed = 0;
+        try {
+            for (String line : lines)
+            {
+                Matcher matcher = entry.matcher(line);
+                if (!matcher.matches()) {
+                    if (!line.isBlank()) malformed++;
+                    continue;
+                }
+                String expected = matcher.group(1).toLowerCase();
+                String name = matcher.group(2);
+                Path path = Paths.get(normalizePath(name));
+                inFlight.add(pool.submit(() -> {
+                    String result;
+                    try {
+                        if (Checksums.hex(checksums.digest(path)).equals(expected)) result = "OK";
+                        else {
+                            mismatches.increment();
+                            result = "FAILED";
+                        }
+                    }
+                    catch (IOException e) {
+                        unreadable.increment();
+                        result = "FAILED open or read";
+                    }
+                    return (name + ": " + result + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+                }));
+                while (inFlight.size() >= Checksums.WORKERS * Checksums.IN_FLIGHT_PER_WORKER) writeNext(inFlight, out);
+            }
+            while (!inFlight.isEmpty()) writeNext(inFlight, out);
+        }
+        finally {
+            pool.shutdownNow();
         }
 
-        return res;
+        if (malformed > 0) out.println("WARNING: " + malformed + " line" + (malformed == 1 ? " is" : "s are") + " improperly formatted");
+        if (unreadable.sum() > 0) out.println("WARNING: " + unreadable.sum() + " listed file" + (unreadable.sum() == 1 ? "" : "s") + " could not be read");
+        if (mismatches.sum() > 0) out.println("WARNING: " + mismatches.sum() + " computed checksum" + (mismatches.sum() == 1 ? "" : "s") + " did NOT match");
+        if (malformed > 0 || unreadable.sum() > 0 || mismatches.sum() > 0) failed = true;
     }
 
     public void mkdir(String[] args)
@@ -130,46 +4694,121 @@ class Terminal
         }
         else
         {
-            System.out.println("Error: INSUFFICIENT ARGUMENTS");
+            error("Error: INSUFFICIENT ARGUMENTS");
         }
     }
 
+    //rmdir [-p] dir..., the dirs can be globs like build*. -p also removes the parents named in the path
+    //(rmdir -p a/b/c removes c, then b, then a). rmdir * removes every empty subdirectory and leaves the rest
     public void rmdir(String[] args)
     {
-        if (args.length > 0)
+        boolean parents = args.length > 0 && args[0].equals("-p");
+        String[] dirs = parents ? Arrays.copyOfRange(args, 1, args.length) : args;
+        if (dirs.length == 0) {
+            error("Error: INSUFFICIENT ARGUMENTS");
+            return;
+        }
+        if (dirs.length == 1 && dirs[0].equals("*") && !parents) {
+            removeEmptyChildren();
+            return;
+        }
+
+        ArrayList<String> targets = new ArrayList<>();
+        for (String dir : dirs) targets.addAll(expandGlob(dir));
+        if (targets.size() == 1 && !parents) { //the classic single directory messages
+            File f = new File(normalizePath(targets.get(0)));
+            if (!f.isDirectory()) error("Error: Directory does not exist");
+            else if (f.delete()) console().println("Directory successfully deleted"); // delete only works on empty directories BY DEFAULT
+            else error("Directory has children");
+            return;
+        }
+
+        int removed = 0;
+        ArrayList<String> errors = new ArrayList<>();
+        for (String target : targets)
         {
-            if (args[0].equals("*"))
+            //the path as written, then its parents with -p, stopping at the first one that can't go
+            for (Path dir = Paths.get(target); dir != null; dir = parents ? dir.getParent() : null)
             {
-                File[] dir = new File(currentPath).listFiles();
-                for (int i=0;i<dir.length;i++)
-                {
-                    dir[i].delete();
+                Path absolute = Paths.get(normalizePath(dir.toString()));
+                if (!Files.isDirectory(absolute, LinkOption.NOFOLLOW_LINKS)) {
+                    errors.add(dir + ": " + (Files.exists(absolute, LinkOption.NOFOLLOW_LINKS) ? "NOT A DIRECTORY" : "NOT FOUND"));
+                    break;
+                }
+                try {
+                    Files.delete(absolute);
+                    removed++;
+                }
+                catch (DirectoryNotEmptyException e) {
+                    errors.add(dir + ": NOT EMPTY");
+                    break;
+                }
+                catch (IOException e) {
+                    errors.add(dir + ": " + e.getClass().getSimpleName());
+                    break;
                 }
-                System.out.println("deleted all empty children");
-                return;
             }
-            File f = new File(normalizePath(args[0]));
-            if (f.isDirectory())
+        }
+        console().println("Removed " + removed + (removed == 1 ? " directory" : " directories"));
+        if (!errors.isEmpty()) {
+            failed = true;
+            console().println("Error: " + errors.size() + " directories could not be removed");
+            for (String problem : errors) console().println("  " + problem);
+        }
+    }
+
+    //only directories, and only the empty ones (delete() alone would take empty files along too)
+    private void removeEmptyChildren()
+    {
+        int removed = 0;
+        int notEmpty = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(Paths.get(currentPath)))
+        {
+            for (Path entry : entries)
             {
-                if (f.delete()) // delete only works on empty directories BY DEFAULT
-                {
-                    System.out.println("Directory successfully deleted");
+                if (!Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) continue;
+                try {
+                    Files.delete(entry);
+                    removed++;
                 }
-                else
-                {
-                    System.out.println("Directory has children");
+                catch (IOException e) {
+                    notEmpty++;
                 }
             }
-            else
+        }
+        catch (IOException e) {
+            error("Error: CANNOT READ " + currentPath);
+            return;
+        }
+        console().println("deleted all empty children (" + removed + " removed, " + notEmpty + " not empty)");
+    }
+
+    //the paths an argument stands for: a glob in its last part (*.log, build/*.o) is matched against that directory
+    //in name order, like the shell leaving out dot files unless the glob starts with a dot.
+    //Anything else, or a glob that matches nothing, stands for itself
+    List<String> expandGlob(String arg)
+    {
+        int slash = arg.lastIndexOf('/');
+        String name = arg.substring(slash + 1);
+        if (!Glob.isGlob(name)) return Collections.singletonList(arg);
+        String parent = arg.substring(0, slash + 1);
+        Pattern pattern = Glob.toPattern(name);
+        ArrayList<String> matches = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(Paths.get(normalizePath(parent.isEmpty() ? "." : parent))))
+        {
+            for (Path entry : entries)
             {
-                System.out.println("Error: Directory does not exist");
+                String entryName = entry.getFileName().toString();
+                if (entryName.startsWith(".") && !name.startsWith(".")) continue;
+                if (pattern.matcher(entryName).matches()) matches.add(parent + entryName);
             }
-
         }
-        else
-        {
-            System.out.println("Error: INSUFFICIENT ARGUMENTS");
+        catch (IOException e) {
+            return Collections.singletonList(arg);
         }
+        if (matches.isEmpty()) return Collections.singletonList(arg);
+        Collections.sort(matches);
+        return matches;
     }
 
     public void touch(String[] args)
@@ -182,40 +4821,42 @@ class Terminal
             {
                 if (f.createNewFile())
                 {
-                    System.out.println("File created successfully");
+                    console().println("File created successfully");
                 }
                 else
                 {
-                    System.out.println("Error: File already exists");
+                    error("Error: File already exists");
                 }
             }
             catch (IOException e) {
-                System.out.println("Error: FAILED TO CREATE FILE");
+                error("Error: FAILED TO CREATE FILE");
             }
 
         }
         else
         {
-            System.out.println("Error: INSUFFICIENT ARGUMENTS");
+            error("Error: INSUFFICIENT ARGUMENTS");
         }
     }
 
     public void cp(String[] args) throws IOException
     {
+        boolean verify = args.length > 0 && args[0].equals("--verify"); //reads the copy back and checks its sha256
+        if (verify) args = Arrays.copyOfRange(args, 1, args.length);
         if (args.length != 2) {
-            System.out.println("Error: INVALID NUMBER OF ARGUMENTS");
+            error("Error: INVALID NUMBER OF ARGUMENTS");
             return;
         }
 
         Path file1 = Paths.get(normalizePath(args[0]));
 
         if (!Files.exists(file1)) {
-            System.out.println("Error: Trying to copy a non-existing file");
+            error("Error: Trying to copy a non-existing file");
             return;
         }
 
         if (Files.isDirectory(file1)) {
-            System.out.println("Error: Can't copy directories");
+            error("Error: Can't copy directories");
             return;
         }
 
@@ -223,337 +4864,1070 @@ class Terminal
 
         //If the destination file doesn't exist
         if (file2.getParent() == null) {
-            System.out.println("Error: can't navigate");
+            error("Error: can't navigate");
             return;
         }
 
         boolean existed = Files.exists(file2);
 
-        Files.copy(file1, file2, REPLACE_EXISTING);
+        if (verify) {
+            //no sum cache for one file, loading and rewriting the whole cache would cost more than the copy
+            Checksums checksums = new Checksums(false);
+            try {
+                checksums.copyVerified(file1, file2, null);
+            }
+            catch (IOException e) {
+                error("Error: " + args[1] + " " + e.getMessage());
+                return;
+            }
+        }
+        else FileIO.copyFile(file1, file2);
 
         //Overrides the file if it exists
-        if (existed) System.out.println("File is overwritten successfully");
+        if (existed) console().println("File is overwritten successfully");
 
         //Create the file if it doesn't exist
-        else System.out.println("File is created and copied successfully");
+        else console().println("File is created and copied successfully");
     }
 
     public void cpr (String args[])
     {
-        //using AtomicBoolean rather than boolean because lambda expression only takes a copy of variables and not a reference
-        AtomicBoolean success = new AtomicBoolean(true);
+        //-u copies only new or changed files (same size and modification time means unchanged)
+        //--checksum compares the contents instead of the modification time, --blocks rewrites only changed blocks of big files
+        //--verify reads every copied file back and checks it against the sha256 taken while copying
+        ArrayList<String> paths = new ArrayList<>();
+        boolean incremental = false, compareContent = false, blockCopy = false, verify = false;
+        for (String arg : args)
+        {
+            if (arg.equals("-u")) incremental = true;
+            else if (arg.equals("--checksum")) incremental = compareContent = true;
+            else if (arg.equals("--blocks")) incremental = blockCopy = true;
+            else if (arg.equals("--verify")) verify = true;
+            else paths.add(arg);
+        }
 
-        if (args.length != 2) {
-            System.out.println("Error: INVALID NUMBER OF ARGUMENTS");
+        if (paths.size() != 2) {
+            error("Error: INVALID NUMBER OF ARGUMENTS");
             return;
         }
-        Path sourceDir = Paths.get(normalizePath(args[0]));
-        Path targetDir = Paths.get(normalizePath(args[1]));
+        Path sourceDir = Paths.get(normalizePath(paths.get(0)));
+        Path targetDir = Paths.get(normalizePath(paths.get(1)));
         if (!Files.exists(sourceDir)) {
-            System.out.println("Error: Trying to copy a non-existing directory");
+            error("Error: Trying to copy a non-existing directory");
             return;
         }
         if (!Files.isDirectory(sourceDir)) {
-            System.out.println("Error: Source path is not a directory");
+            error("Error: Source path is not a directory");
             return;
         }
-        try {
-            Files.walk(sourceDir).forEach( sourcePathIterator -> { //lambda expression for action functional interface to avoid creating an unnecessary class
-                try
-                {
-                    Path targetPathIterator = targetDir.resolve(sourceDir.relativize(sourcePathIterator)); //get us from sourceDir to sourcePathIterator and returns the path in targetPathIterator
 
-                    if (Files.isDirectory(sourcePathIterator)) {
-                        if (!Files.exists(targetPathIterator))
-                        {
-                            Files.createDirectories(targetPathIterator);
-                        }
-                    }
-                    else Files.copy(sourcePathIterator, targetPathIterator, REPLACE_EXISTING);
+        TreeCopy copy = new TreeCopy(sourceDir, targetDir, TreeCopy.WORKERS);
+        copy.incremental = incremental;
+        copy.compareContent = compareContent;
+        copy.blockCopy = blockCopy;
+        if (verify) copy.verify = new Checksums(true);
+        long start = System.nanoTime();
+        copy.run();
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
 
-                }
-                catch (IOException e) {
-                    e.printStackTrace();
-                    success.set(false);
-                }
-            });
+        if (copy.errors.isEmpty()) console().println("Directory copied successfully");
+        else {
+            failed = true;
+            copy.printErrors(console());
         }
-        catch (IOException e) {
-            e.printStackTrace();
-            success.set(false);
+        if (incremental) console().printf("%d copied, %d skipped, %.1f MB written, %.1f MB saved%n", copy.files.sum(), copy.skipped.sum(),
+                copy.bytes.sum() / 1048576.0, copy.savedBytes.sum() / 1048576.0);
+        console().printf("%d files, %.1f MB in %.2f s (%.0f files/s, %.1f MB/s)%n", copy.files.sum(), copy.bytes.sum() / 1048576.0,
+                seconds, copy.files.sum() / seconds, copy.bytes.sum() / 1048576.0 / seconds);
+        if (verify) {
+            console().println(copy.verify.verified.sum() + " files verified (sha256)");
+            try {
+                copy.verify.saveCache();
+            }
+            catch (IOException e) {
+                error("Error: CANNOT WRITE CHECKSUM CACHE (" + e.getMessage() + ")");
+            }
         }
-        if (success.get()) System.out.println("Directory copied successfully");
-        else System.out.println("Error: something went wrong");
     }
+
+    //rm [-r] [-f] path..., the paths can be globs like *.log. -r removes directories with everything in them, in parallel,
+    //-f says nothing about paths that don't exist. With -r or several paths the counts and the errors come at the end
     public void rm(String[] args)
     {
-        if (args.length > 0)
+        boolean recursive = false;
+        boolean force = false;
+        ArrayList<String> targets = new ArrayList<>();
+        for (String arg : args)
         {
-            File f = new File(normalizePath(args[0]));
+            if (arg.length() > 1 && arg.startsWith("-") && targets.isEmpty()) {
+                for (int i = 1; i < arg.length(); i++)
+                {
+                    char option = arg.charAt(i);
+                    if (option == 'r' || option == 'R') recursive = true;
+                    else if (option == 'f') force = true;
+                    else {
+                        error("Error: UNKNOWN OPTION -" + option);
+                        return;
+                    }
+                }
+                continue;
+            }
+            String last = Paths.get(arg).getFileName() == null ? "" : Paths.get(arg).getFileName().toString();
+            if (last.isEmpty() || last.equals(".") || last.equals("..")) {
+                error("Error: REFUSING TO REMOVE " + arg);
+                return;
+            }
+            targets.addAll(expandGlob(arg));
+        }
+        if (targets.isEmpty()) {
+            if (!force) error("Error: INSUFFICIENT ARGUMENTS");
+            return;
+        }
+
+        if (targets.size() == 1 && !recursive) { //the classic single file messages
+            File f = new File(normalizePath(targets.get(0)));
             if (f.isFile())
             {
                 if (f.delete()) // delete only works on empty directories BY DEFAULT
                 {
-                    System.out.println("File successfully deleted");
+                    console().println("File successfully deleted");
                 }
                 else
                 {
-                    System.out.println("ERROR: Failed to delete file");
+                    error("ERROR: Failed to delete file");
                 }
             }
-            else
+            else if (f.isDirectory()) error("Error: " + targets.get(0) + " IS A DIRECTORY (use rm -r)");
+            else if (!force) error("Error: File does not exist");
+            return;
+        }
+
+        TreeDelete delete = new TreeDelete(TreeDelete.WORKERS);
+        long start = System.nanoTime();
+        try {
+            for (String target : targets)
             {
-                System.out.println("Error: File does not exist");
+                Path path = Paths.get(normalizePath(target));
+                if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+                    if (!force) delete.errors.add(target + ": NOT FOUND");
+                }
+                else if (!recursive && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) delete.errors.add(target + ": IS A DIRECTORY (use rm -r)");
+                else delete.delete(path, target);
             }
-
         }
-        else
-        {
-            System.out.println("Error: INSUFFICIENT ARGUMENTS");
+        finally {
+            delete.shutdown();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long files = delete.files.sum();
+        long directories = delete.directories.sum();
+        console().printf("Removed %d files and %d directories in %.2f s (%.0f entries/s)%n", files, directories, seconds, (files + directories) / Math.max(seconds, 1e-9));
+        if (!delete.errors.isEmpty()) {
+            failed = true;
+            delete.printErrors(console());
         }
     }
-    public String cat(String[] args) {
-        StringBuilder result = new StringBuilder();
-        if (args.length != 1 && args.length != 2) return "Error: Invalid number of arguments";
+    public void cat(String[] args, InputStream in, OutputSink out) throws IOException {
+        if (args.length == 0 && in != null) { // no files inside a pipeline means reading the previous stage
+            out.writeAll(in);
+            return;
+        }
+        if (args.length == 0) {
+            error(out, "Error: Invalid number of arguments");
+            return;
+        }
         for (String arg : args)
         {
             File f = new File(normalizePath(arg));
-            if (!f.exists()) return ("Error: " + arg + " NOT FOUND");
-            if (!f.isFile()) return ("Error: " + arg + " NOT A FILE");
-            try (Scanner reader = new Scanner(f))
+            if (!f.exists()) {
+                error(out, "Error: " + arg + " NOT FOUND");
+                return;
+            }
+            if (!f.isFile()) {
+                error(out, "Error: " + arg + " NOT A FILE");
+                return;
+            }
+            try (FileChannel reader = FileChannel.open(f.toPath(), StandardOpenOption.READ))
             {
-                while (reader.hasNextLine())
-                    result.append(reader.nextLine()).append("\n"); //StringBuilder to avoid creating a string at each concatenation
+                out.transferFrom(reader); //byte exact and never copied through the heap
+            } catch (Pipe.ClosedException e) {
+                throw e; //the next stage stopped reading, not a read error
             } catch (IOException e)
             {
-                return ("Error: FAILED TO READ " + arg);
+                error(out, "Error: FAILED TO READ " + arg);
+                return;
+            }
+        }
+    }
+
+    public void head(String[] args, InputStream in, OutputSink out) throws IOException
+    {
+        headOrTail(false, args, in, out);
+    }
+
+    public void tail(String[] args, InputStream in, OutputSink out) throws IOException
+    {
+        headOrTail(true, args, in, out);
+    }
+
+    //head / tail [-n N | -N] [file]..., 10 lines by default, with several files each one gets a ==> name <== header
+    //tail -f file keeps printing what is appended until the job is killed; without files they read the previous stage
+    private void headOrTail(boolean tail, String[] args, InputStream in, OutputSink out) throws IOException
+    {
+        String command = tail ? "tail" : "head";
+        long lines = 10;
+        boolean follow = false;
+        ArrayList<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            try {
+                if (arg.equals("-n")) lines = Long.parseLong(args[++i]);
+                else if (arg.startsWith("-n")) lines = Long.parseLong(arg.substring(2));
+                else if (tail && arg.equals("-f")) follow = true;
+                else if (arg.length() > 1 && arg.startsWith("-") && Character.isDigit(arg.charAt(1))) lines = Long.parseLong(arg.substring(1));
+                else if (arg.length() > 1 && arg.startsWith("-")) {
+                    error(out, "Error: UNKNOWN OPTION " + arg);
+                    return;
+                }
+                else files.add(arg);
+            }
+            catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                error(out, "Error: -n NEEDS A NUMBER");
+                return;
+            }
+        }
+        if (lines < 0) {
+            error(out, "Error: -n NEEDS A NUMBER");
+            return;
+        }
+        if (files.isEmpty()) {
+            if (in == null) error(out, "Error: " + command + " NEEDS A FILE");
+            else if (tail) HeadTail.tail(in, lines, out);
+            else HeadTail.head(in, lines, out);
+            return;
+        }
+        if (follow && files.size() > 1) {
+            error(out, "Error: tail -f TAKES ONE FILE");
+            return;
+        }
+
+        for (int i = 0; i < files.size(); i++)
+        {
+            String file = files.get(i);
+            Path path = Paths.get(normalizePath(file));
+            if (Files.isDirectory(path)) {
+                error(out, "Error: " + file + " IS A DIRECTORY");
+                continue;
+            }
+            if (files.size() > 1) out.println((i > 0 ? System.lineSeparator() : "") + "==> " + file + " <==");
+            long end;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+            {
+                if (tail) {
+                    end = channel.size();
+                    long start = HeadTail.startOfLastLines(channel, end, lines);
+                    out.transferFrom(channel, start, end - start);
+                }
+                else {
+                    end = 0;
+                    HeadTail.head(Channels.newInputStream(channel), lines, out);
+                }
+            }
+            catch (NoSuchFileException e) {
+                error(out, "Error: " + file + " NOT FOUND");
+                continue;
+            }
+            if (follow) HeadTail.follow(path, end, out);
+        }
+    }
+
+    //sort [-n] [-r] [-u] [-k N[,M]] [-S size] [file]..., without files it sorts the previous pipeline stage
+    //inputs bigger than the memory budget are sorted in runs on disk and merged (ExternalSort)
+    public void sort(String[] args, InputStream in, OutputSink out) throws IOException
+    {
+        boolean numeric = false, reverse = false, unique = false;
+        int keyField = 0, keyEndField = 0;
+        long memory = ExternalSort.DEFAULT_MEMORY;
+        ArrayList<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++)
+        {
+            String arg = args[i];
+            try {
+                if (arg.startsWith("-k") || arg.startsWith("-S")) {
+                    String value = arg.length() > 2 ? arg.substring(2) : args[++i]; //-k2 or -k 2
+                    if (arg.startsWith("-S")) memory = parseSize(value);
+                    else {
+                        int comma = value.indexOf(',');
+                        keyField = Integer.parseInt(comma < 0 ? value : value.substring(0, comma));
+                        keyEndField = comma < 0 ? 0 : Integer.parseInt(value.substring(comma + 1));
+                        if (keyField < 1 || comma >= 0 && keyEndField < keyField) throw new NumberFormatException();
+                    }
+                }
+                else if (arg.length() > 1 && arg.startsWith("-")) {
+                    for (int c = 1; c < arg.length(); c++)
+                    {
+                        switch (arg.charAt(c))
+                        {
+                            case 'n': numeric = true; break;
+                            case 'r': reverse = true; break;
+                            case 'u': unique = true; break;
+                            default:
+                                error(out, "Error: UNKNOWN OPTION -" + arg.charAt(c));
+                                return;
+                        }
+                    }
+                }
+                else files.add(arg);
+            }
+            catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                error(out, "Error: " + arg.substring(0, 2) + " NEEDS A " + (arg.startsWith("-S") ? "SIZE" : "FIELD NUMBER"));
+                return;
+            }
+        }
+
+        ArrayList<InputStream> inputs = new ArrayList<>();
+        try {
+            if (files.isEmpty()) {
+                if (in == null) {
+                    error(out, "Error: sort NEEDS A FILE");
+                    return;
+                }
+                inputs.add(in);
+            }
+            for (String file : files)
+            {
+                Path path = Paths.get(normalizePath(file));
+                if (Files.isDirectory(path)) {
+                    error(out, "Error: " + file + " IS A DIRECTORY");
+                    return;
+                }
+                try {
+                    inputs.add(Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ)));
+                }
+                catch (NoSuchFileException e) {
+                    error(out, "Error: " + file + " NOT FOUND");
+                    return;
+                }
+            }
+            new ExternalSort(numeric, reverse, unique, keyField, keyEndField, memory).sort(inputs, out);
+        }
+        finally {
+            for (InputStream input : inputs) if (input != in) input.close();
+        }
+    }
+
+    //1048576, 512K, 256M or 2G
+    static long parseSize(String size)
+    {
+        char unit = Character.toUpperCase(size.charAt(size.length() - 1));
+        int shift = unit == 'K' ? 10 : unit == 'M' ? 20 : unit == 'G' ? 30 : 0;
+        long value = Long.parseLong(shift == 0 ? size : size.substring(0, size.length() - 1)) << shift;
+        if (value <= 0) throw new NumberFormatException(size);
+        return value;
+    }
+
+    //uniq [-c] [file]: drops the lines equal to the one before them, -c prefixes every line with its count
+    public void uniq(String[] args, InputStream in, OutputSink out) throws IOException
+    {
+        boolean count = false;
+        String file = null;
+        for (String arg : args)
+        {
+            if (arg.equals("-c")) count = true;
+            else if (arg.length() > 1 && arg.startsWith("-")) {
+                error(out, "Error: UNKNOWN OPTION " + arg);
+                return;
+            }
+            else if (file == null) file = arg;
+            else {
+                error(out, "Error: uniq TAKES ONE FILE");
+                return;
+            }
+        }
+        if (file == null && in == null) {
+            error(out, "Error: uniq NEEDS A FILE");
+            return;
+        }
+
+        InputStream input = in;
+        if (file != null) {
+            try {
+                input = Channels.newInputStream(FileChannel.open(Paths.get(normalizePath(file)), StandardOpenOption.READ));
+            }
+            catch (NoSuchFileException e) {
+                error(out, "Error: " + file + " NOT FOUND");
+                return;
+            }
+        }
+        try {
+            ExternalSort.Lines lines = new ExternalSort.Lines(input, OutputSink.CHUNK_SIZE);
+            byte[] newline = {'\n'};
+            byte[] previous = lines.next();
+            long repeats = 1;
+            while (previous != null)
+            {
+                byte[] line = lines.next();
+                if (line != null && Arrays.equals(line, previous)) {
+                    repeats++;
+                    continue;
+                }
+                if (count) out.print(String.format("%7d ", repeats));
+                out.write(previous, 0, previous.length);
+                out.write(newline, 0, 1);
+                previous = line;
+                repeats = 1;
+            }
+        }
+        finally {
+            if (input != in) input.close();
+        }
+    }
+
+    public void wc(String[] args, InputStream in, OutputSink out) throws IOException {
+        //-l, -w and -c pick the columns (any combination, like -lw), no flag means all three
+        //-p counts the files at the same time and splits big files into ranges on the fork/join pool
+        boolean countLines = false, countWords = false, countBytes = false, parallel = false;
+        ArrayList<String> files = new ArrayList<>();
+        for (String arg : args)
+        {
+            if (arg.length() > 1 && arg.startsWith("-")) {
+                for (char flag : arg.substring(1).toCharArray())
+                {
+                    if (flag == 'l') countLines = true;
+                    else if (flag == 'w') countWords = true;
+                    else if (flag == 'c') countBytes = true;
+                    else if (flag == 'p') parallel = true;
+                    else {
+                        error(out, "Error: UNKNOWN OPTION -" + flag);
+                        return;
+                    }
+                }
             }
+            else files.add(arg);
         }
-        return result.toString();
-    }
+        if (!countLines && !countWords && !countBytes) countLines = countWords = countBytes = true;
 
-    public String wc(String[] args) {
-        StringBuilder result = new StringBuilder();
-        if (args.length <= 0) return("Error: Invalid number of arguments");
-        for (String arg : args)
+        if (files.isEmpty() && in != null) { // counting the previous stage of a pipeline
+            out.println(WcCounts.ofStream(in, countLines, countWords).format(countLines, countWords, countBytes));
+            return;
+        }
+        if (files.isEmpty()) {
+            error(out, "Error: Invalid number of arguments");
+            return;
+        }
+        //checking the files in order first, so the rows before an error are the same in both modes
+        ArrayList<Path> valid = new ArrayList<>();
+        String error = null;
+        for (String arg : files)
         {
             File f = new File(normalizePath(arg));
-            int lineCount = 0;
-            int wordCount = 0;
-            int charCount = 0;
+            if (!f.exists()) error = "Error: FILE " + arg + " NOT FOUND";
+            else if (!f.isFile()) error = "Error: " + arg + " IS NOT A FILE";
+            if (error != null) break;
+            valid.add(f.toPath());
+        }
 
-            if (!f.exists()) return ("Error: FILE " + arg + " NOT FOUND");
-            if (!f.isFile()) return("Error: " + arg + " IS NOT A FILE");
+        //-p has a pool of its own (like du, rm and sort), the one the wc-scaling benchmark measures
+        ForkJoinPool pool = parallel ? new ForkJoinPool(WcCounts.WORKERS) : null;
+        ArrayList<ForkJoinTask<WcCounts>> tasks = new ArrayList<>();
+        try {
+            if (parallel) {
+                for (Path file : valid) tasks.add(WcCounts.submit(file, countLines, countWords, pool));
+            }
 
-            try (Scanner reader = new Scanner(f))
+            long totalLines = 0, totalWords = 0, totalBytes = 0;
+            for (int i = 0; i < valid.size(); i++)
             {
-                while (reader.hasNextLine())
+                try
                 {
-                    String line = reader.nextLine();
-                    lineCount++;
-                    String trimmed = line.trim();
-                    if (!trimmed.isEmpty()) wordCount += trimmed.split("\\s+").length; //to avoid counting empty lines as a word
-                    charCount += line.length();
-                    if (reader.hasNextLine()) charCount++; //to count the \n character at the end of each line if exists
+                    WcCounts counts = parallel ? WcCounts.join(tasks.get(i)) : WcCounts.ofFile(valid.get(i), countLines, countWords);
+                    out.println(counts.format(countLines, countWords, countBytes) + " " + files.get(i)); //written per file instead of collected for all files
+                    totalLines += counts.lines();
+                    totalWords += counts.words;
+                    totalBytes += counts.bytes;
+                }
+                catch (Pipe.ClosedException e) {
+                    throw e; //the next stage stopped reading, not a read error
+                }
+                catch (IOException e) {
+                    error(out, "Error: FAILED TO READ FILE -> " + files.get(i));
+                    return;
                 }
-                result.append(lineCount).append(" ").append(wordCount).append(" ").append(charCount).append(" ").append(arg).append("\n"); //StringBuilder to avoid creating a string at each concatenation
-            }
-            catch (IOException e) {
-                return "Error: FAILED TO READ FILE -> " + arg + "\n";
             }
+            if (files.size() > 1 && error == null) out.println(WcCounts.format(totalLines, totalWords, totalBytes, countLines, countWords, countBytes) + " total");
+        }
+        finally {
+            //after an error (or a closed pipe) the files not joined yet are not counted to the end
+            for (ForkJoinTask<WcCounts> task : tasks) task.cancel(true);
+            if (pool != null) pool.shutdownNow();
+        }
+        if (error != null) {
+            error(out, error);
         }
-        return result.toString();
     }
 
     public void zip(String[] args) {
+        //-0 .. -9 set the compression level (-0 stores everything), -n .jpg:.zip stores inputs with those suffixes
+        ParallelZip engine = new ParallelZip();
+        ArrayList<String> names = new ArrayList<>();
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].matches("-[0-9]")) engine.level = args[i].charAt(1) - '0';
+            else if (args[i].equals("-n") && i + 1 < args.length) {
+                for (String suffix : args[++i].split(":")) if (!suffix.isEmpty()) engine.storedSuffixes.add(suffix.toLowerCase());
+            }
+            else names.add(args[i]);
+        }
+
         // We need at least 2 things
-        if (args.length < 2) {
-            System.out.println("Error: zip needs an archive name and at least one file to compress.");
+        if (names.size() < 2) {
+            error("Error: zip needs an archive name and at least one file to compress.");
             return;
         }
 
         //name of our zip file
-        String zipFileName = args[0];
-
-        try {
-            //  writes to the physical zip file
-            FileOutputStream fileOutputStream = new FileOutputStream(normalizePath(zipFileName));
-
-            //tool from java.util.zip =  formats the data correctly
-            ZipOutputStream zipOutputStream = new ZipOutputStream(fileOutputStream);
+        String zipFileName = names.get(0);
+        File archive = new File(normalizePath(zipFileName));
 
-            for (int i = 1; i < args.length; i++) {
-                File fileToZip = new File(normalizePath(args[i]));
+        //the entries are listed first, then compressed in parallel and written in this order
+        ArrayList<ParallelZip.Source> sources = new ArrayList<>();
+        for (int i = 1; i < names.size(); i++) {
+            File fileToZip = new File(normalizePath(names.get(i)));
 
-                // If a file doesn't exist
-                if (!fileToZip.exists()) {
-                    System.out.println("Warning: File not found, skipping: " + args[i]);
-                    continue;
-                }
-
-                addFileToZip(fileToZip, fileToZip.getName(), zipOutputStream);
+            // If a file doesn't exist
+            if (!fileToZip.exists()) {
+                console().println("Warning: File not found, skipping: " + names.get(i));
+                continue;
             }
 
-            //close
-            zipOutputStream.close();
-            fileOutputStream.close();
-            System.out.println("Successfully created " + zipFileName);
+            addFileToZip(fileToZip, fileToZip.getName(), archive, sources);
+        }
 
+        try {
+            engine.write(archive.toPath(), sources);
+            console().println("Successfully created " + zipFileName);
         } catch (IOException e) {
-            System.out.println("Error: Something went wrong while creating the zip file.");
+            archive.delete(); //no half written archives
+            error("Error: Something went wrong while creating the zip file.");
         }
     }
 
     //helper method handles (recursion)
-    private void addFileToZip(File file, String entryName, ZipOutputStream zipOutputStream) throws IOException {
+    private void addFileToZip(File file, String entryName, File archive, List<ParallelZip.Source> sources) {
         // check if directory
         if (file.isDirectory()) {
             File[] children = file.listFiles();
+            if (children == null) return;
             for (File childFile : children) {
                 // the method calls itself for each item in the folder = recursion
-                addFileToZip(childFile, entryName + "/" + childFile.getName(), zipOutputStream);
+                addFileToZip(childFile, entryName + "/" + childFile.getName(), archive, sources);
             }
             return;
         }
+        if (file.equals(archive)) return; //the archive being written may sit inside a zipped folder
 
+        // A Source = label file inside
+        sources.add(new ParallelZip.Source(file, entryName));
+    }
 
-        FileInputStream fileInputStream = new FileInputStream(file);
-        // A ZipEntry = label file inside
-        ZipEntry zipEntry = new ZipEntry(entryName);
-        zipOutputStream.putNextEntry(zipEntry);
 
+    // unzip
+    //unzip [-l] archive.zip [entry or glob]... : the central directory is read first, so single entries and
+    //the -l listing never go through the rest of the archive, and the selected entries are extracted in parallel
+    public void unzip(String[] args, OutputSink out) throws IOException {
+        boolean list = false;
+        ArrayList<String> names = new ArrayList<>();
+        for (String arg : args)
+        {
+            if (arg.equals("-l")) list = true;
+            else names.add(arg);
+        }
 
-        byte[] bytes = new byte[1024];
-        int length;
-        while ((length = fileInputStream.read(bytes)) >= 0) {
-            zipOutputStream.write(bytes, 0, length);
+        // name?
+        if (names.isEmpty()) {
+            error("Error: unzip needs the name of the archive to extract.");
+            return;
+        }
+
+        String zipFileName = names.get(0);
+        ArrayList<Pattern> selected = new ArrayList<>();
+        for (String pattern : names.subList(1, names.size())) selected.add(Glob.toPattern(pattern));
+        Path destinationDir = Paths.get(currentPath).toAbsolutePath().normalize(); // Extract to current location
+
+        try (ZipFile zipFile = new ZipFile(normalizePath(zipFileName)))
+        {
+            ArrayList<ZipEntry> entries = new ArrayList<>();
+            for (ZipEntry zipEntry : Collections.list(zipFile.entries()))
+            {
+                if (selected.isEmpty() || matchesAny(selected, zipEntry.getName())) entries.add(zipEntry);
+            }
+
+            if (list) {
+                listZip(entries, out);
+                return;
+            }
+            if (entries.isEmpty()) {
+                error("Error: no entries of " + zipFileName + " match");
+                return;
+            }
+
+            ConcurrentLinkedQueue<String> errors = new ConcurrentLinkedQueue<>();
+            ExecutorService pool = Executors.newFixedThreadPool(ParallelZip.WORKERS);
+            for (ZipEntry zipEntry : entries)
+            {
+                // zip slip: an entry like ../../x must not be written outside of the current directory
+                Path newFile = destinationDir.resolve(zipEntry.getName()).normalize();
+                if (!newFile.startsWith(destinationDir) || newFile.equals(destinationDir)) {
+                    errors.add(zipEntry.getName() + ": outside of the current directory, skipped");
+                    continue;
+                }
+                pool.execute(() -> {
+                    try {
+                        if (zipEntry.isDirectory()) {
+                            Files.createDirectories(newFile);
+                            return;
+                        }
+                        Files.createDirectories(newFile.getParent());
+                        try (InputStream entryStream = zipFile.getInputStream(zipEntry)) {
+                            FileIO.copy(entryStream, newFile);
+                        }
+                    }
+                    catch (IOException e) {
+                        errors.add(zipEntry.getName() + ": " + e.getClass().getSimpleName() + " " + e.getMessage());
+                    }
+                });
+            }
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            }
+            catch (InterruptedException e) {
+                pool.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+
+            if (errors.isEmpty()) {
+                console().println("Successfully extracted " + zipFileName);
+                return;
+            }
+            error("Error: " + errors.size() + " of " + entries.size() + " entries were not extracted");
+            for (String error : errors) console().println("  " + error);
+
+        } catch (IOException e) {
+            error("Error: Something went wrong during extraction.");
         }
+    }
+
+    private static boolean matchesAny(List<Pattern> patterns, String name)
+    {
+        for (Pattern pattern : patterns) if (pattern.matcher(name).matches()) return true;
+        return false;
+    }
 
-        fileInputStream.close();
+    //unzip -l: sizes and times straight from the central directory, nothing is decompressed
+    private void listZip(List<ZipEntry> entries, OutputSink out) throws IOException
+    {
+        DateTimeFormatter format = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+        long total = 0;
+        out.println("    Length   Compressed  Date             Name");
+        for (ZipEntry zipEntry : entries)
+        {
+            LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(zipEntry.getTime()), ZoneId.systemDefault());
+            out.println(String.format("%10d %12d  %s %s", zipEntry.getSize(), zipEntry.getCompressedSize(), format.format(time), zipEntry.getName()));
+            total += Math.max(0, zipEntry.getSize());
+        }
+        out.println(String.format("%10d %12s  %16s %d files", total, "", "", entries.size()));
     }
 
+    public void chooseCommandAction(String input) throws IOException
+    {
+        reapJobs();
+        failed = false;
+        String typed = input.trim();
+        if (typed.isEmpty()) return;
+        String line = expandHistory(typed);
+        if (line == null) return;
+        if (line != typed) console().println(line); //shows what !! / !n ran, like bash
+        remember(line);
 
-    // unzip
-    public void unzip(String[] args) {
-        // name?
-        if (args.length < 1) {
-            System.out.println("Error: unzip needs the name of the archive to extract.");
+        CommandCache.Entry entry = commandCache.get(line, currentPath, parser);
+        if (entry.commands == null) {
+            error(entry.error);
             return;
         }
+        running = entry;
 
-        String zipFileName = args[0];
-        File destinationDir = new File(currentPath); // Extract to current location
+        //failed holds the status of the previous command while the list runs, an && command is skipped when it is set
+        boolean anyFailed = false;
+        ArrayList<Parser.Command> commands = entry.commands;
+        for (int i = 0; i < commands.size(); i++)
+        {
+            Parser.Command command = commands.get(i);
+            if (command.background) {
+                //the job is the whole && chain that ends with the &
+                int end = i + 1;
+                while (end < commands.size() && commands.get(end).connector == Parser.Connector.IfSucceeded) end++;
+                Jobs.Job job = jobs.start(this, entry, commands.subList(i, end));
+                console().println("[" + job.id + "] " + job.text);
+                failed = false;
+                i = end - 1;
+                continue;
+            }
+            if (command.connector == Parser.Connector.IfSucceeded && failed) continue;
+            failed = false;
+            run(command);
+            anyFailed |= failed;
+            if (Thread.currentThread().isInterrupted()) { //Ctrl-C, the rest of the line doesn't run
+                anyFailed = true;
+                break;
+            }
+        }
+        failed = anyFailed;
+    }
 
-        try {
-            // read
-            FileInputStream fileInputStream = new FileInputStream(normalizePath(zipFileName));
-            ZipInputStream zipInputStream = new ZipInputStream(fileInputStream);
+    //runs one pipeline of the list into its > / >> target or the terminal, and records it in stats (and JFR)
+    //"time cmd" also prints what the pipeline used once it is done
+    void run(Parser.Command command) throws IOException
+    {
+        List<Parser.Stage> stages = command.stages;
+        Parser.Stage first = stages.get(0);
+        boolean timed = first.commandName.equals("time");
+        if (timed) {
+            if (first.args.length == 0) {
+                error("Error: time NEEDS A COMMAND");
+                return;
+            }
+            stages = new ArrayList<>(stages);
+            stages.set(0, new Parser.Stage(first.args[0].toLowerCase(), Arrays.copyOfRange(first.args, 1, first.args.length)));
+        }
+        String name = stages.get(0).commandName;
+        for (int i = 1; i < stages.size(); i++) name += " | " + stages.get(i).commandName;
+
+        ResourceUsage before = timed ? ResourceUsage.now() : null;
+        CommandEvent event = JFR_EVENTS ? new CommandEvent() : null;
+        if (event != null) event.begin();
+        long start = System.nanoTime();
+        long took = 0;
+        boolean completed = false;
+        try (OutputSink out = handleRedirection(command))
+        {
+            if (stages.size() > 1) Pipeline.run(this, stages, out);
+            else execute(stages.get(0).commandName, stages.get(0).args, null, out);
+            completed = true;
+        }
+        finally {
+            took = System.nanoTime() - start;
+            stats.record(name, took, failed || !completed);
+            if (event != null && event.shouldCommit()) {
+                event.command = name;
+                event.directory = currentPath;
+                event.failed = failed || !completed;
+                event.background = output != null;
+                event.commit();
+            }
+        }
+        if (timed) for (String row : ResourceUsage.now().since(before, took)) console().println(row);
+    }
 
-            // zipentry = file inside
-            ZipEntry zipEntry = zipInputStream.getNextEntry();
+    //stats prints the counters and latency percentiles per command since the start (or the last stats -c)
+    public void stats(String[] args, OutputSink out) throws IOException
+    {
+        if (args.length > 0 && args[0].equals("-c")) {
+            stats.clear();
+            return;
+        }
+        if (args.length > 0) {
+            error(out, "Error: UNKNOWN OPTION " + args[0]);
+            return;
+        }
+        for (String row : stats.table()) out.println(row);
+    }
 
+    //shows the output of the jobs that finished since the last line and drops them, like the Done notice of bash
+    void reapJobs() throws IOException
+    {
+        for (Jobs.Job job : jobs.finished()) finish(job, true);
+    }
 
-            while (zipEntry != null) {
-                File newFile = new File(destinationDir, zipEntry.getName());
+    private void finish(Jobs.Job job, boolean notice) throws IOException
+    {
+        try (OutputSink out = OutputSink.stdout())
+        {
+            job.drain(out);
+        }
+        if (notice) console().println("[" + job.id + "]  " + job.state() + "\t" + job.text);
+        jobs.remove(job);
+    }
 
-                // cr folder
-                if (zipEntry.isDirectory()) {
-                    newFile.mkdirs();
-                } else {
-                    // parent folder? oracle documentation of java
-                    new File(newFile.getParent()).mkdirs();
+    //jobs lists the background jobs that were not shown yet
+    public void listJobs(OutputSink out) throws IOException
+    {
+        for (Jobs.Job job : jobs.list()) out.println("[" + job.id + "]  " + job.state() + "\t" + job.text);
+    }
 
-                    // write file content
-                    FileOutputStream fileOutputStream = new FileOutputStream(newFile);
-                    byte[] buffer = new byte[1024];
-                    int len;
-                    while ((len = zipInputStream.read(buffer)) > 0) {
-                        fileOutputStream.write(buffer, 0, len);
-                    }
-                    fileOutputStream.close();
-                }
-                // next item
-                zipEntry = zipInputStream.getNextEntry();
+    //wait [%n]...: blocks until the jobs (all of them without arguments) are done, then shows their output
+    public void waitJobs(String[] args) throws IOException
+    {
+        List<Jobs.Job> waited = new ArrayList<>();
+        if (args.length == 0) waited = jobs.list();
+        for (String arg : args)
+        {
+            Jobs.Job job = jobs.find(arg);
+            if (job == null) error("Error: " + arg + ": NO SUCH JOB");
+            else waited.add(job);
+        }
+        for (Jobs.Job job : waited)
+        {
+            try {
+                job.done.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("wait interrupted", e);
+            }
+            catch (ExecutionException e) {
+                //done is only ever completed normally
+            }
+            if (job.failed()) failed = true; //like the exit status of wait
+            finish(job, true);
+        }
+    }
+
+    //fg [%n]: follows the output of the job (the newest one by default) until it is done
+    public void fg(String[] args, OutputSink out) throws IOException
+    {
+        String arg = args.length > 0 ? args[0] : null;
+        Jobs.Job job = jobs.find(arg);
+        if (job == null) {
+            error(out, arg == null ? "Error: NO CURRENT JOB" : "Error: " + arg + ": NO SUCH JOB");
+            return;
+        }
+        out.println(job.text);
+        while (!job.done.isDone())
+        {
+            job.drain(out);
+            try {
+                job.done.get(50, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException | ExecutionException e) {
+                //still running, show what came in meanwhile
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("fg interrupted", e);
             }
+        }
+        job.drain(out);
+        if (job.failed()) failed = true;
+        jobs.remove(job);
+    }
 
-            // close stream
-            zipInputStream.closeEntry();
-            zipInputStream.close();
-            fileInputStream.close();
-            System.out.println("Successfully extracted " + zipFileName);
+    //kill %n...: stops the jobs, they are reported as Killed once their thread is out
+    public void kill(String[] args) throws IOException
+    {
+        if (args.length == 0) {
+            error("Error: kill NEEDS A JOB (%n)");
+            return;
+        }
+        for (String arg : args)
+        {
+            Jobs.Job job = jobs.find(arg);
+            if (job == null) error("Error: " + arg + ": NO SUCH JOB");
+            else job.kill();
+        }
+    }
 
-        } catch (IOException e) {
-            System.out.println("Error: Something went wrong during extraction.");
+    //!! is the previous line and !n the line numbered n by history, anything else is returned as it is
+    //returns null (after printing the error) when the event is gone
+    String expandHistory(String line)
+    {
+        if (line.length() < 2 || line.charAt(0) != '!') return line;
+        long number;
+        if (line.equals("!!")) number = historyCount;
+        else {
+            try {
+                number = Long.parseLong(line.substring(1));
+            }
+            catch (NumberFormatException e) {
+                return line;
+            }
+        }
+
+        long oldest = historyCount - history.size() + 1;
+        if (number < oldest || number > historyCount) {
+            error("Error: " + line + ": EVENT NOT FOUND");
+            return null;
         }
+        Iterator<String> entries = history.iterator();
+        for (long i = oldest; i < number; i++) entries.next();
+        return entries.next();
     }
 
-    public void chooseCommandAction(String input) throws IOException
+    void remember(String line)
+    {
+        history.addLast(line);
+        historyCount++;
+        if (history.size() > HISTORY_SIZE) history.removeFirst();
+    }
+
+    //history prints the numbered lines, -c clears them, --cache shows the command cache counters
+    public void history(String[] args, OutputSink out) throws IOException
     {
-        parser.parse(input);
+        if (args.length > 0 && args[0].equals("-c")) {
+            history.clear();
+            commandCache.clear();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--cache")) {
+            out.println(commandCache.stats());
+            return;
+        }
+        if (args.length > 0) {
+            error(out, "Error: UNKNOWN OPTION " + args[0]);
+            return;
+        }
+
+        long number = historyCount - history.size() + 1;
+        for (String line : history) out.println(String.format("%5d  %s", number++, line));
+    }
 
-        switch (parser.commandName)
+    //runs one command, in is the previous stage of a pipeline (null when there is none)
+    public void execute(String commandName, String[] args, InputStream in, OutputSink out) throws IOException
+    {
+        switch (commandName)
         {
             case "pwd":
-                commandOutput = pwd();
+                out.println(pwd());
                 break;
             case "cd":
-                commandOutput = null;
-                cd(parser.getArgs());
+                cd(args);
                 break;
             case "ls":
-                commandOutput = ls();
+                ls(args, out);
                 break;
             case "mkdir":
-                commandOutput = null;
-                mkdir(parser.getArgs());
+                mkdir(args);
                 break;
             case "rmdir":
-                commandOutput = null;
-                rmdir(parser.getArgs());
+                rmdir(args);
                 break;
             case "touch":
-                commandOutput = null;
-                touch(parser.getArgs());
+                touch(args);
                 break;
             case "cp":
-                commandOutput = null;
-                if (parser.getArgs().length > 0 && parser.getArgs()[0].equals("-r"))
-                    cpr(Arrays.copyOfRange(parser.getArgs(), 1, parser.getArgs().length));
-                else cp(parser.getArgs());
+                if (args.length > 0 && args[0].equals("-r"))
+                    cpr(Arrays.copyOfRange(args, 1, args.length));
+                else cp(args);
                 break;
             case "rm":
-                commandOutput = null;
-                rm(parser.getArgs());
+                rm(args);
                 break;
             case "cat":
-                commandOutput = cat(parser.getArgs());
+                cat(args, in, out);
                 break;
             case "wc":
-                commandOutput = wc(parser.getArgs());
+                wc(args, in, out);
                 break;
             case "zip":
-                commandOutput = null;
-                zip(parser.getArgs());
+                zip(args);
                 break;
             case "unzip":
-                commandOutput = null;
-                unzip(parser.getArgs());
+                unzip(args, out);
+                break;
+            case "history":
+                history(args, out);
+                break;
+            case "du":
+                du(args, out);
+                break;
+            case "find":
+                find(args, out);
+                break;
+            case "grep":
+                grep(args, in, out);
+                break;
+            case "jobs":
+                listJobs(out);
+                break;
+            case "wait":
+                waitJobs(args);
+                break;
+            case "fg":
+                fg(args, out);
+                break;
+            case "kill":
+                kill(args);
+                break;
+            case "stats":
+                stats(args, out);
+                break;
+            case "head":
+                head(args, in, out);
+                break;
+            case "sort":
+                sort(args, in, out);
+                break;
+            case "uniq":
+                uniq(args, in, out);
+                break;
+            case "tail":
+                tail(args, in, out);
+                break;
+            case "sum":
+            case "sha256sum":
+                sum(args, in, out);
                 break;
             default:
-                System.out.println("Error: COMMAND NOT FOUND");
+                error("Error: COMMAND NOT FOUND");
         }
-        handleRedirection();
     }
 
-    public void handleRedirection() throws IOException {
-        if (parser.writeType == Parser.WriteType.NoWrite || commandOutput == null) return;
-        String targetFile = normalizePath(parser.filePath);
-        File file = new File(targetFile);
-        if (!file.exists()) file.createNewFile();
-        if (parser.writeType == Parser.WriteType.Overwrite) Files.writeString(file.toPath(), commandOutput);
-        else if (parser.writeType == Parser.WriteType.Append) Files.writeString(file.toPath(), commandOutput, StandardOpenOption.CREATE ,java.nio.file.StandardOpenOption.APPEND); //if the file doesn't exist it creates it
+    //prints an error message and marks the command as failed
+    void error(String message)
+    {
+        failed = true;
+        console().println(message);
+    }
+
+    //same for the commands that report errors in their output (cat, wc)
+    void error(OutputSink out, String message) throws IOException
+    {
+        failed = true;
+        report(out, message);
+    }
+
+    //an error line in the output, or on the console when the output is the next stage of a pipeline (it would be read as data)
+    void report(OutputSink out, String message) throws IOException
+    {
+        if (out.feedsStage()) console().println(message);
+        else out.println(message);
+    }
+
+    //the bytes of an error line for commands that write their output in order from worker tasks, nothing when it went to the console
+    byte[] reportLine(OutputSink out, String message)
+    {
+        if (out.feedsStage()) {
+            console().println(message);
+            return new byte[0];
+        }
+        return (message + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    //opens the sink the command writes to: the terminal, or the > / >> target file
+    public OutputSink handleRedirection(Parser.Command command) throws IOException {
+        if (command.writeType == Parser.WriteType.NoWrite) return output != null ? OutputSink.toShared(output) : OutputSink.stdout();
+        Path targetFile = Paths.get(normalizePath(command.filePath));
+        return OutputSink.toFile(targetFile, command.writeType == Parser.WriteType.Append); //if the file doesn't exist it creates it
     }
     public String normalizePath(String path)
+    {
+        CommandCache.Entry line = running;
+        if (line != null && line.currentPath.equals(currentPath)) return line.paths.computeIfAbsent(path, this::resolvePath);
+        return resolvePath(path);
+    }
+
+    String resolvePath(String path)
     {
         Path p = Paths.get(path);
         if (p.isAbsolute()) {
@@ -567,21 +5941,37 @@ class Terminal
 }
 public class Main {
     static Terminal t = new Terminal();
+    static volatile boolean busy; //a command line is running on the main thread
+    static volatile boolean interrupted; //Ctrl-C was pressed while it ran
 
     public static void main(String[] args) throws IOException
     {
+        if (args.length > 0) {
+            runBatch(args);
+            return;
+        }
+
+        catchCtrlC(Thread.currentThread()); //not in batch mode, where Ctrl-C ends the run and the proxy would cost startup time
+
         Scanner input = new Scanner(System.in);
-        Terminal t = new Terminal();
-        while (true) {
+        while (input.hasNextLine()) {
             String command = input.nextLine();
             if (command.equals("exit")) break;
+            busy = true;
             try {
                 t.chooseCommandAction(command);
-                if (t.commandOutput != null)    System.out.println(t.commandOutput);
             }
             catch (Exception e) {
-                System.out.println("Error during command: " + command);
-                e.printStackTrace();
+                if (interrupted) System.out.println("Interrupted: " + command);
+                else {
+                    System.out.println("Error during command: " + command);
+                    e.printStackTrace();
+                }
+            }
+            finally {
+                busy = false;
+                interrupted = false;
+                Thread.interrupted(); //a Ctrl-C that came in as the command ended
             }
 
         }
@@ -608,7 +5998,6 @@ public class Main {
             System.out.println("\n> " + command);
             try {
                 t.chooseCommandAction(command);
-                if (t.commandOutput != null)    System.out.println(t.commandOutput);
             }
              catch (Exception e) {
                 System.out.println("Error during command: " + command);
@@ -617,4 +6006,130 @@ public class Main {
         }
     */
     }
-}
\ No newline at end of file
+
+    //Ctrl-C at the prompt interrupts the thread of the command line instead of ending the JVM, so a foreground tail -f,
+    //wait, fg or pipeline stops and the prompt comes back; with no command running, or pressed again, it exits like before.
+    //sun.misc.Signal is looked up at runtime (jdk.unsupported), without it Ctrl-C keeps its default
+    static void catchCtrlC(Thread foreground)
+    {
+        try {
+            Class<?> signal = Class.forName("sun.misc.Signal");
+            Class<?> handlerType = Class.forName("sun.misc.SignalHandler");
+            Object handler = Proxy.newProxyInstance(handlerType.getClassLoader(), new Class<?>[] {handlerType}, (proxy, method, arguments) -> {
+                switch (method.getName())
+                {
+                    case "hashCode": return System.identityHashCode(proxy);
+                    case "equals": return proxy == arguments[0];
+                    case "toString": return "Ctrl-C handler";
+                }
+                if (!busy || interrupted) System.exit(130); //the usual exit status after SIGINT
+                interrupted = true;
+                foreground.interrupt();
+                return null;
+            });
+            signal.getMethod("handle", signal, handlerType).invoke(null, signal.getConstructor(String.class).newInstance("INT"), handler);
+        }
+        catch (ReflectiveOperationException | RuntimeException e) {
+            //no sun.misc.Signal, or INT is taken (-Xrs): Ctrl-C ends the JVM
+        }
+    }
+
+    //java Main [-e] [-f script.txt]... ["command line"]...
+    //runs the script files and the command lines given as arguments, then prints the timings on stderr
+    //-e (or a "set -e" line in a script) stops at the first command that fails
+    //the exit status is the last command's like sh: 1 when it failed (or stopped the run), otherwise 0
+    static void runBatch(String[] args) throws IOException
+    {
+        OutputSink.batchStdout();
+        BatchRun run = new BatchRun();
+        try {
+            for (int i = 0; i < args.length && !run.stopped; i++)
+            {
+                if (args[i].equals("-e")) run.stopOnError = true;
+                else if (args[i].equals("-f") && i + 1 < args.length) {
+                    try (BufferedReader script = Files.newBufferedReader(Paths.get(t.normalizePath(args[++i])), StandardCharsets.UTF_8))
+                    {
+                        String line;
+                        while (!run.stopped && (line = script.readLine()) != null) run.execute(line);
+                    }
+                }
+                else run.execute(args[i]);
+            }
+        }
+        finally {
+            try {
+                run.waitForJobs();
+            }
+            finally {
+                System.out.flush();
+                run.report();
+            }
+        }
+        if (run.lastFailed) System.exit(1);
+    }
+
+    //state of one batch run: the set -e flag and the number of lines run, the times per command are in t.stats
+    static class BatchRun
+    {
+        boolean stopOnError;
+        boolean stopped;
+        boolean lastFailed;
+        private final long start = System.nanoTime();
+        private long commands;
+
+        void execute(String line)
+        {
+            String command = line.trim();
+            if (command.isEmpty() || command.startsWith("#")) return; //blank lines and comments
+            if (command.equals("set -e")) {
+                stopOnError = true;
+                return;
+            }
+            if (command.equals("set +e")) {
+                stopOnError = false;
+                return;
+            }
+            if (command.equals("exit")) {
+                stopped = true;
+                return;
+            }
+
+            boolean failed;
+            try {
+                t.chooseCommandAction(command);
+                failed = t.failed;
+            }
+            catch (Exception e) {
+                System.out.println("Error during command: " + command);
+                e.printStackTrace(System.out);
+                failed = true;
+            }
+            commands++;
+
+            lastFailed = failed;
+            if (failed && stopOnError) {
+                System.out.println("Stopped: \"" + command + "\" failed (set -e)");
+                stopped = true;
+            }
+        }
+
+        //the implicit wait at the end, so the jobs started with & print their output before the JVM exits
+        void waitForJobs()
+        {
+            try {
+                t.waitJobs(new String[0]);
+            }
+            catch (IOException e) {
+                System.out.println("Error during wait: " + e.getMessage());
+            }
+        }
+
+        void report()
+        {
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.err.printf("%d commands in %.3f s (%.0f commands/s)%n", commands, seconds, commands / Math.max(seconds, 1e-9));
+            System.err.println(t.commandCache.stats());
+            for (String row : t.stats.table()) System.err.println(row);
+        }
+    }
+}
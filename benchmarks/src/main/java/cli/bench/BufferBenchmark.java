@@ -0,0 +1,149 @@
+package cli.bench;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+//the stream to file copy of unzip (FileIO.copy through the shared BufferPool) with buffers from 1 KB to 1 MB,
+//on its own and inside the unzip command; run with -prof gc for the allocation per copy, the read and write
+//syscalls per copy are counted from /proc/self/io (Linux, 0 elsewhere)
+//BufferPool reads -Dcli.bufferSize once, when the class is first used. jvmArgsAppend is the same for every @Param, so
+//each size gets its fork from JMH (one per parameter set) and the setup sets the property before anything loads
+//BufferPool, then checks that the pool really has that size. The fixture is built with java.util.zip for that reason.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class BufferBenchmark
+{
+    @Param({"1", "4", "16", "64", "256", "1024"})
+    public int kilobytes;
+
+    @Param({"64"})
+    public int megabytes;
+
+    private Path root;
+    private Path source;
+    private Path target;
+    private Object terminal;
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException
+    {
+        System.setProperty("cli.bufferSize", Integer.toString(kilobytes * 1024));
+        if (Cli.bufferSize() != kilobytes * 1024) throw new IllegalStateException("BufferPool was loaded before cli.bufferSize was set");
+
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream())); //unzip prints a status line per run
+        root = Files.createTempDirectory("cli-bench-buffers");
+        source = root.resolve("input.log");
+        target = root.resolve("output.log");
+        Fixtures.writeText(source, (long) megabytes * 1024 * 1024);
+        try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(root.resolve("input.zip").toFile()));
+             InputStream in = Files.newInputStream(source))
+        {
+            zip.putNextEntry(new ZipEntry("extracted.log"));
+            in.transferTo(zip);
+        }
+        terminal = Cli.terminal(root);
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException
+    {
+        Fixtures.deleteTree(root);
+        System.setOut(originalOut);
+    }
+
+    //read and write syscalls of the whole JVM during one copy, averaged over the iteration
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Syscalls
+    {
+        public double readsPerOp;
+        public double writesPerOp;
+        private long reads, writes, ops;
+        private long[] before;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            reads = writes = ops = 0;
+        }
+
+        @Setup(Level.Invocation)
+        public void start()
+        {
+            before = count();
+        }
+
+        @TearDown(Level.Invocation)
+        public void stop()
+        {
+            long[] after = count();
+            reads += after[0] - before[0];
+            writes += after[1] - before[1];
+            ops++;
+            readsPerOp = (double) reads / ops;
+            writesPerOp = (double) writes / ops;
+        }
+
+        private static long[] count()
+        {
+            long[] calls = new long[2];
+            try {
+                for (String line : Files.readAllLines(Paths.get("/proc/self/io")))
+                {
+                    if (line.startsWith("syscr:")) calls[0] = Long.parseLong(line.substring(6).trim());
+                    else if (line.startsWith("syscw:")) calls[1] = Long.parseLong(line.substring(6).trim());
+                }
+            }
+            catch (IOException e) {
+                //not Linux, the counters stay at 0
+            }
+            return calls;
+        }
+    }
+
+    @Benchmark
+    public long copyStream(Syscalls syscalls) throws IOException
+    {
+        try (FileInputStream in = new FileInputStream(source.toFile()))
+        {
+            return Cli.copyStream(in, target);
+        }
+    }
+
+    @Benchmark
+    public void unzip(Syscalls syscalls)
+    {
+        Cli.run(terminal, "unzip input.zip");
+    }
+}
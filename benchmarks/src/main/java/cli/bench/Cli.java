@@ -0,0 +1,117 @@
+package cli.bench;
+
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+
+//the CLI classes live in the default package, which named packages can't import,
+//so the benchmarks reach Terminal and Parser through method handles (constant, so the JIT inlines them)
+final class Cli
+{
+    private static final MethodHandle NEW_TERMINAL;
+    private static final MethodHandle SET_CURRENT_PATH;
+    private static final MethodHandle CHOOSE_COMMAND_ACTION;
+    private static final MethodHandle NEW_PARSER;
+    private static final MethodHandle PARSE;
+    private static final MethodHandle COPY_STREAM;
+    private static final MethodHandle BUFFER_SIZE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            Class<?> terminal = Class.forName("Terminal");
+            Class<?> parser = Class.forName("Parser");
+            NEW_TERMINAL = lookup.unreflectConstructor(accessible(terminal.getDeclaredConstructor()));
+            SET_CURRENT_PATH = lookup.unreflectSetter(accessible(terminal.getDeclaredField("currentPath")));
+            CHOOSE_COMMAND_ACTION = lookup.unreflect(accessible(terminal.getMethod("chooseCommandAction", String.class)));
+            NEW_PARSER = lookup.unreflectConstructor(accessible(parser.getDeclaredConstructor()));
+            PARSE = lookup.unreflect(accessible(parser.getMethod("parse", String.class)));
+            //looked up without initializing them, BufferPool reads -Dcli.bufferSize when it is first used
+            ClassLoader loader = Cli.class.getClassLoader();
+            Class<?> fileIO = Class.forName("FileIO", false, loader);
+            Class<?> bufferPool = Class.forName("BufferPool", false, loader);
+            COPY_STREAM = lookup.unreflect(accessible(fileIO.getDeclaredMethod("copy", InputStream.class, Path.class)));
+            BUFFER_SIZE = lookup.unreflectGetter(accessible(bufferPool.getDeclaredField("DEFAULT_SIZE")));
+        }
+        catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Cli()
+    {
+    }
+
+    private static <T extends java.lang.reflect.AccessibleObject> T accessible(T member)
+    {
+        member.setAccessible(true); //the classes are package-private
+        return member;
+    }
+
+    static Object terminal(Path currentPath)
+    {
+        try {
+            Object terminal = NEW_TERMINAL.invoke();
+            SET_CURRENT_PATH.invoke(terminal, currentPath.toString());
+            return terminal;
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void run(Object terminal, String command)
+    {
+        try {
+            CHOOSE_COMMAND_ACTION.invoke(terminal, command);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException("Command failed: " + command, e);
+        }
+    }
+
+    //FileIO.copy(in, target): the stream to file copy of unzip, through the default buffer pool
+    static long copyStream(InputStream in, Path target)
+    {
+        try {
+            return (long) COPY_STREAM.invoke(in, target);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static int bufferSize()
+    {
+        try {
+            return (int) BUFFER_SIZE.invoke();
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Object parser()
+    {
+        try {
+            return NEW_PARSER.invoke();
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static boolean parse(Object parser, String line)
+    {
+        try {
+            return (boolean) PARSE.invoke(parser, line);
+        }
+        catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package cli.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//one benchmark per command, run through Terminal.chooseCommandAction exactly like a typed command line
+//output is redirected into the scratch folder so the terminal stays quiet
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class CommandBenchmark
+{
+    private Object inData; //terminal whose current folder is the fixture tree
+    private Object inOutput; //terminal whose current folder is the scratch folder
+    private String out;
+    private String largest;
+
+    @Setup(Level.Trial)
+    public void terminals(Fixtures fixtures)
+    {
+        inData = Cli.terminal(fixtures.data);
+        inOutput = Cli.terminal(fixtures.output);
+        out = fixtures.output.resolve("out.txt").toString();
+        largest = fixtures.data.relativize(fixtures.largestFile).toString();
+    }
+
+    //cp -r and unzip need an empty target every time, only the benchmarks that write there take it
+    //so the per invocation cleanup stays out of the short ls / cat / wc measurements
+    @State(Scope.Thread)
+    public static class EmptyOutput
+    {
+        @Setup(Level.Invocation)
+        public void clean(Fixtures fixtures) throws IOException
+        {
+            Fixtures.deleteTree(fixtures.output);
+            Files.createDirectories(fixtures.output);
+        }
+    }
+
+    //rm -r removes a fresh copy of the fixture tree every time
+    @State(Scope.Thread)
+    public static class CopiedData
+    {
+        private Object inRoot;
+
+        @Setup(Level.Trial)
+        public void terminal(Fixtures fixtures)
+        {
+            inRoot = Cli.terminal(fixtures.root);
+        }
+
+        @Setup(Level.Invocation)
+        public void copy(Fixtures fixtures) throws IOException
+        {
+            Fixtures.deleteTree(fixtures.output);
+            Files.createDirectories(fixtures.output);
+            Cli.run(inRoot, "cp -r data output/copy");
+        }
+    }
+
+    //after the first call the listing comes from the listing cache
+    @Benchmark
+    public void ls()
+    {
+        Cli.run(inData, "ls > " + out);
+    }
+
+    @Benchmark
+    public void lsRecursive()
+    {
+        Cli.run(inData, "ls -lR > " + out);
+    }
+
+    @Benchmark
+    public void cat()
+    {
+        Cli.run(inData, "cat " + largest + " > " + out);
+    }
+
+    @Benchmark
+    public void wc()
+    {
+        Cli.run(inData, "wc " + largest + " > " + out);
+    }
+
+    @Benchmark
+    public void head()
+    {
+        Cli.run(inData, "head -n 100 " + largest + " > " + out);
+    }
+
+    @Benchmark
+    public void tail()
+    {
+        Cli.run(inData, "tail -n 100 " + largest + " > " + out);
+    }
+
+    @Benchmark
+    public void sort()
+    {
+        Cli.run(inData, "sort " + largest + " > " + out);
+    }
+
+    @Benchmark
+    public void grep()
+    {
+        Cli.run(inData, "grep -rc served . > " + out);
+    }
+
+    @Benchmark
+    public void du()
+    {
+        Cli.run(inData, "du -s . > " + out);
+    }
+
+    //after the first call only the directories are checked against the du cache
+    @Benchmark
+    public void duCached()
+    {
+        Cli.run(inData, "du -s --cache . > " + out);
+    }
+
+    @Benchmark
+    public void sum()
+    {
+        Cli.run(inData, "sum -r --no-cache . > " + out);
+    }
+
+    //after the first call the digests come from the checksum cache
+    @Benchmark
+    public void sumCached()
+    {
+        Cli.run(inData, "sum -r . > " + out);
+    }
+
+    @Benchmark
+    public void rmRecursive(CopiedData copied)
+    {
+        Cli.run(inOutput, "rm -r copy");
+    }
+
+    @Benchmark
+    public void cp(EmptyOutput empty)
+    {
+        Cli.run(inData, "cp " + largest + " " + out);
+    }
+
+    @Benchmark
+    public void cpRecursive(Fixtures fixtures, EmptyOutput empty)
+    {
+        Cli.run(inData, "cp -r " + fixtures.data + " " + fixtures.output.resolve("copy"));
+    }
+
+    @Benchmark
+    public void zip(Fixtures fixtures, EmptyOutput empty)
+    {
+        Cli.run(inOutput, "zip data.zip " + fixtures.data);
+    }
+
+    @Benchmark
+    public void unzip(Fixtures fixtures, EmptyOutput empty)
+    {
+        Cli.run(inOutput, "unzip " + fixtures.archive);
+    }
+}
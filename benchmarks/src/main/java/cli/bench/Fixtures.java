@@ -0,0 +1,119 @@
+package cli.bench;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+//generated test data, one per trial:
+//  many-small: one flat folder of 4 KB files
+//  few-huge:   four big files
+//  deep-tree:  a chain of 32 nested folders with 4 KB files on every level
+//the total size is set with -p megabytes=N
+@State(Scope.Benchmark)
+public class Fixtures
+{
+    static final int SMALL_FILE = 4 * 1024;
+    static final int DEPTH = 32;
+
+    @Param({"many-small", "few-huge", "deep-tree"})
+    public String shape;
+
+    @Param({"64"})
+    public int megabytes;
+
+    Path root; //temp folder holding everything below
+    Path data; //the generated tree
+    Path largestFile;
+    Path archive; //zip of data, for unzip
+    Path output; //scratch folder for command results
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void generate() throws IOException
+    {
+        //status lines like "File is created and copied successfully" would flood the JMH output
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        root = Files.createTempDirectory("cli-bench");
+        //set before the first du --cache or sum loads them, so the benchmarks never touch the caches in the home folder
+        System.setProperty("cli.duCache", root.resolve("du-cache").toString());
+        System.setProperty("cli.sumCache", root.resolve("sum-cache").toString());
+        data = root.resolve("data");
+        output = root.resolve("output");
+        Files.createDirectories(data);
+        Files.createDirectories(output);
+        long total = (long) megabytes * 1024 * 1024;
+
+        switch (shape)
+        {
+            case "many-small":
+                for (int i = 0; i < total / SMALL_FILE; i++) writeText(data.resolve("f" + i + ".log"), SMALL_FILE);
+                largestFile = data.resolve("f0.log");
+                break;
+            case "few-huge":
+                for (int i = 0; i < 4; i++) writeText(data.resolve("huge" + i + ".log"), total / 4);
+                largestFile = data.resolve("huge0.log");
+                break;
+            case "deep-tree":
+                Path level = data;
+                long perLevel = total / SMALL_FILE / DEPTH;
+                for (int depth = 0; depth < DEPTH; depth++)
+                {
+                    for (int i = 0; i < perLevel; i++) writeText(level.resolve("f" + i + ".log"), SMALL_FILE);
+                    level = level.resolve("level" + depth);
+                    Files.createDirectories(level);
+                }
+                largestFile = data.resolve("f0.log");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown shape " + shape);
+        }
+
+        archive = root.resolve("data.zip");
+        Cli.run(Cli.terminal(root), "zip data.zip data");
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() throws IOException
+    {
+        deleteTree(root);
+        System.setOut(originalOut);
+    }
+
+    static void writeText(Path file, long bytes) throws IOException
+    {
+        long written = 0;
+        long lineNumber = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(file))
+        {
+            while (written < bytes)
+            {
+                String line = "2026-01-01 12:00:00 INFO  request " + lineNumber++ + " served in " + (lineNumber % 97) + " ms\n";
+                writer.write(line);
+                written += line.length();
+            }
+        }
+    }
+
+    static void deleteTree(Path root) throws IOException
+    {
+        if (!Files.exists(root)) return;
+        try (Stream<Path> paths = Files.walk(root))
+        {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
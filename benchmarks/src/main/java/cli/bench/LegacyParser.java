@@ -0,0 +1,58 @@
+package cli.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+//the regex split based Parser.parse from before the hand-written tokenizer, kept as the baseline for ParserBenchmark
+final class LegacyParser
+{
+    static final class Stage
+    {
+        final String commandName;
+        final String[] args;
+
+        Stage(String commandName, String[] args)
+        {
+            this.commandName = commandName;
+            this.args = args;
+        }
+    }
+
+    final ArrayList<Stage> stages = new ArrayList<>();
+    boolean append;
+    String filePath;
+
+    boolean parse(String input)
+    {
+        ArrayList<String> splits = new ArrayList<>(Arrays.asList(input.trim().split("\\s+")));
+        append = false;
+        filePath = null;
+        if (splits.contains(">")) {
+            int idx = splits.indexOf(">");
+            if (idx + 1 < splits.size()) {
+                filePath = splits.get(idx + 1);
+                splits = new ArrayList<>(splits.subList(0, idx));
+            }
+        }
+        else if (splits.contains(">>")) {
+            append = true;
+            int idx = splits.indexOf(">>");
+            if (idx + 1 < splits.size()) {
+                filePath = splits.get(idx + 1);
+                splits = new ArrayList<>(splits.subList(0, idx));
+            }
+        }
+
+        stages.clear();
+        int start = 0;
+        for (int i = 0; i <= splits.size(); i++)
+        {
+            if (i < splits.size() && !splits.get(i).equals("|")) continue;
+            if (i == start) return false;
+            String[] stageArgs = splits.subList(start + 1, i).toArray(String[]::new);
+            stages.add(new Stage(splits.get(start).toLowerCase(), stageArgs));
+            start = i + 1;
+        }
+        return true;
+    }
+}
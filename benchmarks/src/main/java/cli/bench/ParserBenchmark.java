@@ -0,0 +1,49 @@
+package cli.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+//Parser.parse on typical command lines, against the old regex split parser (which reads quotes as plain characters)
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark
+{
+    @Param({"pwd", "cp -r src/main backup/main", "cat a.log b.log | wc -l >> counts.txt", "cd \"My Documents\" && cat 'notes 1.txt' > out.txt"})
+    public String line;
+
+    private Object parser;
+    private final LegacyParser legacy = new LegacyParser();
+
+    @Setup
+    public void create()
+    {
+        parser = Cli.parser();
+    }
+
+    @Benchmark
+    public boolean parse()
+    {
+        return Cli.parse(parser, line);
+    }
+
+    @Benchmark
+    public boolean legacyParse()
+    {
+        return legacy.parse(line);
+    }
+}